@@ -47,6 +47,12 @@ public class FastCosineBench {
         public Dataset queryVectorDataset;
         public Dataset docVectorDataset;
 
+        public static final int SPARSE_VEC_LENGTH = 50000;
+        public static final int SPARSE_NNZ = 200;
+        public float[] sparseQueryScatter;
+        public double sparseQueryVectorNorm;
+        public byte[] sparseDocVectorFieldBytes;
+
         @Setup(Level.Trial)
         public void setUp() {
             Random random = new Random(0xDEADBEEF);
@@ -78,6 +84,27 @@ public class FastCosineBench {
 
             queryVectorDataset = DatasetFactory.createFromObject(queryVector);
             docVectorDataset = DatasetFactory.createFromObject(docVector);
+
+            // calculateSparseScore
+            SparseVector sparseQueryVector = randomSparseVector(random);
+            sparseQueryScatter = sparseQueryVector.toDense();
+            sparseQueryVectorNorm = sparseQueryVector.getSquareSum();
+            sparseDocVectorFieldBytes = new BinaryFieldMapper.CustomBinaryDocValuesField(
+                    "foo",
+                    randomSparseVector(random).toBytes()
+            ).binaryValue().bytes;
+        }
+
+        static SparseVector randomSparseVector(Random random) {
+            // Every (SPARSE_VEC_LENGTH / SPARSE_NNZ)-th dimension, with a random offset
+            int step = SPARSE_VEC_LENGTH / SPARSE_NNZ;
+            int[] indices = new int[SPARSE_NNZ];
+            float[] values = new float[SPARSE_NNZ];
+            for (int i = 0; i < SPARSE_NNZ; i++) {
+                indices[i] = i * step + random.nextInt(step);
+                values[i] = (float) randomDoubleBetween(random, 0d, 1d);
+            }
+            return new SparseVector(indices, values);
         }
 
         static double randomDoubleBetween(Random random, double start, double end) {
@@ -130,6 +157,27 @@ public class FastCosineBench {
         );
     }
 
+    @Benchmark
+    public double calculateFixedDimensionScore(BenchState s) {
+        return FastCosineLeafFactory.calculateFixedDimensionScore(
+                s.byteArrayDataInput,
+                s.docVectorFieldBytes,
+                s.queryVector,
+                s.queryVectorNorm
+        );
+    }
+
+    @Benchmark
+    public double calculateSparseScore(BenchState s) {
+        return FastCosineLeafFactory.calculateSparseScore(
+                1,
+                s.byteArrayDataInput,
+                s.sparseDocVectorFieldBytes,
+                s.sparseQueryScatter,
+                s.sparseQueryVectorNorm
+        );
+    }
+
     /**
      * doc_vector.dot(query_vector) / (np.linalg.norm(doc_vector) * np.linalg.norm(query_vector))
      */
@@ -15,7 +15,6 @@ import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.DoubleBuffer;
-import java.util.Arrays;
 import java.util.Locale;
 import java.util.Map;
 
@@ -23,23 +22,23 @@ public class FastCosineLeafFactory implements ScoreScript.LeafFactory {
     private static Logger logger = LogManager.getLogger();
     private final Map<String, Object> params;
     private final SearchLookup lookup;
+    private final VectorMetadataCache metadataCache;
 
     // Field name parameter
     private final String field;
-    // Decoded vector parameter
-    private double[] queryVector;
-
-    // Computed norm of queryVector
-    private double queryVectorNorm;
-
-    /**
-     * Re-used, might improve performance
-     */
-    private final ByteArrayDataInput byteArrayDataInput;
-
-    FastCosineLeafFactory(Map<String, Object> params, SearchLookup lookup) {
+    // Whether an invalid document vector fails the query, rather than being skipped
+    private final boolean failOnInvalid;
+    // Decoded vector parameter, in either encoding
+    private final QueryVector queryVector;
+
+    FastCosineLeafFactory(
+            Map<String, Object> params,
+            SearchLookup lookup,
+            VectorMetadataCache metadataCache
+    ) {
         this.params = params;
         this.lookup = lookup;
+        this.metadataCache = metadataCache;
 
         if (!params.containsKey("field")) {
             throw new IllegalArgumentException("Missing parameter [field]");
@@ -52,22 +51,22 @@ public class FastCosineLeafFactory implements ScoreScript.LeafFactory {
                 field
         );
 
-        final Object encodedVector = params.get("encoded_vector");
-        if (encodedVector == null) {
+        if (params.get("encoded_vector") == null) {
             throw new IllegalArgumentException(
                     "Must have [vector] or [encoded_vector] as a parameter"
             );
         }
-        queryVector = Util.convertBase64ToArray((String) encodedVector);
+        if (params.containsKey("cache")) {
+            // The script scores every document it is given, only top documents are worth caching
+            throw new IllegalArgumentException(
+                    "[cache] is only supported by the [" + FastCosineQueryBuilder.NAME + "] query"
+            );
+        }
 
-        // Pre-allocate the document vector reader
-        byteArrayDataInput = new ByteArrayDataInput(new byte[1]);
+        failOnInvalid = VectorSegmentScorer.parseFailOnInvalid(params.get("on_invalid"));
 
-        // Compute query queryVector norm once per query per shard
-        queryVectorNorm = 0d;
-        for (double v : queryVector) {
-            queryVectorNorm += Math.pow(v, 2.0d);
-        }
+        // Decode the query vector and compute its norm once per query per shard
+        queryVector = QueryVector.parse((String) params.get("encoded_vector"), params.get("encoding"));
     }
 
     /**
@@ -93,22 +92,36 @@ public class FastCosineLeafFactory implements ScoreScript.LeafFactory {
                 }
             };
         }
-        return new FastCosineScoreScript(params, lookup, context, binaryDocValues);
+        // Segments whose vectors all match the query can skip the per document checks
+        VectorSegmentScorer scorer = VectorSegmentScorer.create(
+                context,
+                field,
+                queryVector,
+                failOnInvalid,
+                metadataCache
+        );
+        return new FastCosineScoreScript(params, lookup, context, binaryDocValues, scorer);
     }
 
     public class FastCosineScoreScript extends ScoreScript implements ExplainableSearchScript {
         BinaryDocValues binaryDocValues;
         int currentDocID = -1;
         Boolean hasValue = false;
+        /**
+         * Scores this segment's vectors, see {@link VectorSegmentMetadata} and [on_invalid]
+         */
+        final VectorSegmentScorer scorer;
 
         FastCosineScoreScript(
                 Map<String, Object> params,
                 SearchLookup lookup,
                 LeafReaderContext leafContext,
-                BinaryDocValues binaryDocValues
+                BinaryDocValues binaryDocValues,
+                VectorSegmentScorer scorer
         ) {
             super(params, lookup, leafContext);
             this.binaryDocValues = binaryDocValues;
+            this.scorer = scorer;
         }
 
         /**
@@ -162,13 +175,10 @@ public class FastCosineLeafFactory implements ScoreScript.LeafFactory {
             }
 
             try {
-                return calculateScore(
-                        currentDocID,
-                        byteArrayDataInput,
-                        binaryDocValues.binaryValue().bytes,
-                        queryVector,
-                        queryVectorNorm
-                );
+                return scorer.score(currentDocID, binaryDocValues.binaryValue().bytes);
+            } catch (IllegalArgumentException e) {
+                scorer.onInvalid(currentDocID, e);
+                return 0d;
             } catch (IOException e) {
                 logger.error("Could not call binaryDocValues.binaryValue()", e);
                 return 0d;
@@ -183,7 +193,7 @@ public class FastCosineLeafFactory implements ScoreScript.LeafFactory {
                     subQueryScore);
             String explanation = String.format(Locale.ROOT, "cosineSimilarity(doc['%s'].value, %s)",
                     field,
-                    Arrays.toString(queryVector)
+                    queryVector
             );
             return Explanation.match(
                     (float) score,
@@ -223,24 +233,25 @@ public class FastCosineLeafFactory implements ScoreScript.LeafFactory {
         final int docVectorLength = byteArrayDataInput.readVInt();
         final int docVectorStartPosition = byteArrayDataInput.getPosition();
 
-        final DoubleBuffer docDoubleBuffer = ByteBuffer.wrap(
-                fieldBytes,
-                docVectorStartPosition,
-                docVectorLength
-        ).asDoubleBuffer();
-
-        if (docDoubleBuffer.capacity() != queryVector.length) {
+        if (docVectorLength != (long) queryVector.length * Double.BYTES
+                || docVectorLength > fieldBytes.length - docVectorStartPosition) {
             throw new IllegalArgumentException(
                     String.format(
                             Locale.ENGLISH,
-                            "Input vector length [%d] differs from document vector length [%d] for docID %d",
+                            "Input vector length [%d] differs from document vector length [%d bytes] for docID %d",
                             queryVector.length,
-                            docDoubleBuffer.capacity(),
+                            docVectorLength,
                             currentDocID
                     )
             );
         }
 
+        final DoubleBuffer docDoubleBuffer = ByteBuffer.wrap(
+                fieldBytes,
+                docVectorStartPosition,
+                docVectorLength
+        ).asDoubleBuffer();
+
         final double[] docVector = new double[docDoubleBuffer.capacity()];
         docDoubleBuffer.get(docVector);
 
@@ -262,6 +273,290 @@ public class FastCosineLeafFactory implements ScoreScript.LeafFactory {
         return score;
     }
 
+    /**
+     * Same as {@link #calculateScore}, for segments where every document vector is known to
+     * have the query vector's length. Reads the document vector in place, without length checks.
+     *
+     * @param byteArrayDataInput Re-used when decoding the fieldBytes.
+     * @param fieldBytes The field's binary doc values.
+     * @param queryVector Query vector
+     * @param queryVectorNorm Query vector square sum
+     * @return Document score
+     */
+    static double calculateFixedDimensionScore(
+            ByteArrayDataInput byteArrayDataInput,
+            byte[] fieldBytes,
+            double[] queryVector,
+            double queryVectorNorm
+    ) {
+        // Re-use byteArrayDataInput
+        byteArrayDataInput.reset(fieldBytes);
+
+        // Number of values stored in the field
+        byteArrayDataInput.readVInt();
+        // Length of the first field value, known to be queryVector.length doubles
+        byteArrayDataInput.readVInt();
+
+        final ByteBuffer docBuffer = ByteBuffer.wrap(
+                fieldBytes,
+                byteArrayDataInput.getPosition(),
+                queryVector.length * Double.BYTES
+        ).slice();
+
+        double docVectorNorm = 0d;
+        double score = 0d;
+
+        // calculate dot product of document vector and query vector
+        for (int i = 0; i < queryVector.length; i++) {
+            final double docValue = docBuffer.getDouble(i * Double.BYTES);
+            score += docValue * queryVector[i];
+
+            docVectorNorm += docValue * docValue;
+        }
+
+        if (docVectorNorm <= 0 || queryVectorNorm <= 0) {
+            return 0d;
+        }
+
+        return score / (Math.sqrt(docVectorNorm * queryVectorNorm));
+    }
+
+    /**
+     * Extract the first value's byte array from fieldBytes, and check that it is a valid
+     * {@link SparseVector} without copying out its indices or values.
+     *
+     * @return The value, positioned so that the nnz header is at index 0
+     * @throws IllegalArgumentException If the field value is not a valid sparse vector.
+     */
+    private static ByteBuffer readSparseDocVector(
+            int currentDocID,
+            ByteArrayDataInput byteArrayDataInput,
+            byte[] fieldBytes
+    ) throws IllegalArgumentException {
+        // Re-use byteArrayDataInput
+        byteArrayDataInput.reset(fieldBytes);
+
+        // Number of values stored in the field
+        final int numValues = byteArrayDataInput.readVInt();
+        // Length of the first field value
+        final int docVectorLength = byteArrayDataInput.readVInt();
+        final int docVectorStartPosition = byteArrayDataInput.getPosition();
+
+        if (docVectorLength < SparseVector.HEADER_BYTES
+                || docVectorLength > fieldBytes.length - docVectorStartPosition) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            Locale.ENGLISH,
+                            "Sparse document vector cannot be [%d] bytes long for docID %d",
+                            docVectorLength,
+                            currentDocID
+                    )
+            );
+        }
+
+        final ByteBuffer docBuffer = ByteBuffer.wrap(
+                fieldBytes,
+                docVectorStartPosition,
+                docVectorLength
+        ).slice();
+
+        final int nnz = docBuffer.getInt(0);
+        if (nnz < 0 || docVectorLength != SparseVector.HEADER_BYTES + (long) nnz * SparseVector.ENTRY_BYTES) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            Locale.ENGLISH,
+                            "Sparse document vector of [%d] entries cannot be [%d] bytes long for docID %d",
+                            nnz,
+                            docVectorLength,
+                            currentDocID
+                    )
+            );
+        }
+        return docBuffer;
+    }
+
+    /**
+     * @return The error for a document index that is negative or not above the previous one
+     */
+    private static IllegalArgumentException invalidIndex(int index, int currentDocID) {
+        if (index < 0) {
+            return new IllegalArgumentException(
+                    String.format(
+                            Locale.ENGLISH,
+                            "Sparse document vector has negative index [%d] for docID %d",
+                            index,
+                            currentDocID
+                    )
+            );
+        }
+        return new IllegalArgumentException(
+                String.format(
+                        Locale.ENGLISH,
+                        "Sparse document vector indices are not strictly ascending at [%d] for docID %d",
+                        index,
+                        currentDocID
+                )
+        );
+    }
+
+    /**
+     * -    Extract the first value's byte array from fieldBytes
+     * -    Read it as a {@link SparseVector}, without copying out indices or values
+     * -    Calculate the cosine similarity by looking up each document entry in the
+     *      scattered query vector, so that the cost follows the document's non-zero count
+     *
+     * @param currentDocID Used for error reporting
+     * @param byteArrayDataInput Re-used when decoding the fieldBytes.
+     * @param fieldBytes The field's binary doc values. See
+     * {@link org.elasticsearch.index.mapper.BinaryFieldMapper.CustomBinaryDocValuesField#binaryValue()}
+     * @param queryScatter Query vector scattered into a dense array, see {@link SparseVector#toDense()}
+     * @param queryVectorNorm Query vector square sum
+     * @return Document score
+     * @throws IllegalArgumentException If the field value is not a valid sparse vector.
+     */
+    static double calculateSparseScore(
+            int currentDocID,
+            ByteArrayDataInput byteArrayDataInput,
+            byte[] fieldBytes,
+            float[] queryScatter,
+            double queryVectorNorm
+    ) throws IllegalArgumentException {
+        final ByteBuffer docBuffer = readSparseDocVector(currentDocID, byteArrayDataInput, fieldBytes);
+        final int nnz = docBuffer.getInt(0);
+
+        // Stored at encoding time
+        final double docVectorNorm = docBuffer.getFloat(Integer.BYTES);
+        if (docVectorNorm <= 0 || queryVectorNorm <= 0) {
+            return 0d;
+        }
+
+        final int indicesPosition = SparseVector.HEADER_BYTES;
+        final int valuesPosition = indicesPosition + nnz * Integer.BYTES;
+        double score = 0d;
+
+        // calculate dot product of the document entries and the scattered query vector
+        int previousIndex = -1;
+        for (int i = 0; i < nnz; i++) {
+            final int index = docBuffer.getInt(indicesPosition + i * Integer.BYTES);
+            // Same check as the merge-join, so that a document is valid for every query
+            if (index <= previousIndex) {
+                throw invalidIndex(index, currentDocID);
+            }
+            previousIndex = index;
+            if (index < queryScatter.length) {
+                score += (double) queryScatter[index] * docBuffer.getFloat(valuesPosition + i * Float.BYTES);
+            }
+        }
+
+        return score / Math.sqrt(docVectorNorm * queryVectorNorm);
+    }
+
+    /**
+     * Same as {@link #calculateSparseScore}, for query vectors too large to scatter: walks the
+     * document and query indices side by side instead, so the cost follows both non-zero counts.
+     *
+     * @param currentDocID Used for error reporting
+     * @param byteArrayDataInput Re-used when decoding the fieldBytes.
+     * @param fieldBytes The field's binary doc values.
+     * @param queryIndices Query vector indices, ascending
+     * @param queryValues Query vector values
+     * @param queryVectorNorm Query vector square sum
+     * @return Document score
+     * @throws IllegalArgumentException If the field value is not a valid sparse vector.
+     */
+    static double calculateSparseMergeScore(
+            int currentDocID,
+            ByteArrayDataInput byteArrayDataInput,
+            byte[] fieldBytes,
+            int[] queryIndices,
+            float[] queryValues,
+            double queryVectorNorm
+    ) throws IllegalArgumentException {
+        final ByteBuffer docBuffer = readSparseDocVector(currentDocID, byteArrayDataInput, fieldBytes);
+        final int nnz = docBuffer.getInt(0);
+
+        // Stored at encoding time
+        final double docVectorNorm = docBuffer.getFloat(Integer.BYTES);
+        if (docVectorNorm <= 0 || queryVectorNorm <= 0) {
+            return 0d;
+        }
+
+        final int indicesPosition = SparseVector.HEADER_BYTES;
+        final int valuesPosition = indicesPosition + nnz * Integer.BYTES;
+        double score = 0d;
+
+        // calculate dot product of the entries present in both vectors
+        int q = 0;
+        int previousIndex = -1;
+        for (int i = 0; i < nnz && q < queryIndices.length; i++) {
+            final int index = docBuffer.getInt(indicesPosition + i * Integer.BYTES);
+            if (index <= previousIndex) {
+                throw invalidIndex(index, currentDocID);
+            }
+            previousIndex = index;
+
+            while (q < queryIndices.length && queryIndices[q] < index) {
+                q++;
+            }
+            if (q < queryIndices.length && queryIndices[q] == index) {
+                score += (double) queryValues[q] * docBuffer.getFloat(valuesPosition + i * Float.BYTES);
+            }
+        }
+
+        return score / Math.sqrt(docVectorNorm * queryVectorNorm);
+    }
+
+    /**
+     * Same as {@link #calculateSparseScore}, for segments where every document vector is known
+     * to be valid and to have no index beyond the scattered query vector. Skips the length check
+     * and the per entry bounds check.
+     *
+     * @param byteArrayDataInput Re-used when decoding the fieldBytes.
+     * @param fieldBytes The field's binary doc values.
+     * @param queryScatter Query vector scattered into a dense array, see {@link SparseVector#toDense()}
+     * @param queryVectorNorm Query vector square sum
+     * @return Document score
+     */
+    static double calculateFixedDimensionSparseScore(
+            ByteArrayDataInput byteArrayDataInput,
+            byte[] fieldBytes,
+            float[] queryScatter,
+            double queryVectorNorm
+    ) {
+        // Re-use byteArrayDataInput
+        byteArrayDataInput.reset(fieldBytes);
+
+        // Number of values stored in the field
+        byteArrayDataInput.readVInt();
+        // Length of the first field value
+        final int docVectorLength = byteArrayDataInput.readVInt();
+
+        final ByteBuffer docBuffer = ByteBuffer.wrap(
+                fieldBytes,
+                byteArrayDataInput.getPosition(),
+                docVectorLength
+        ).slice();
+
+        final int nnz = docBuffer.getInt(0);
+        // Stored at encoding time
+        final double docVectorNorm = docBuffer.getFloat(Integer.BYTES);
+        if (docVectorNorm <= 0 || queryVectorNorm <= 0) {
+            return 0d;
+        }
+
+        final int indicesPosition = SparseVector.HEADER_BYTES;
+        final int valuesPosition = indicesPosition + nnz * Integer.BYTES;
+        double score = 0d;
+
+        // calculate dot product of the document entries and the scattered query vector
+        for (int i = 0; i < nnz; i++) {
+            final int index = docBuffer.getInt(indicesPosition + i * Integer.BYTES);
+            score += (double) queryScatter[index] * docBuffer.getFloat(valuesPosition + i * Float.BYTES);
+        }
+
+        return score / Math.sqrt(docVectorNorm * queryVectorNorm);
+    }
+
     @Override
     public boolean needs_score() {
         return false;
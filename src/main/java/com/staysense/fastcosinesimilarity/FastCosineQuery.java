@@ -0,0 +1,552 @@
+package com.staysense.fastcosinesimilarity;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.ScorerSupplier;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.util.Bits;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Matches the [k] documents of the shard that pass a filter and whose vector is the most
+ * similar to a query vector. Documents without a vector never match, nor do invalid ones
+ * skipped under [on_invalid] skip.
+ *
+ * The top k are collected when the query is rewritten against the shard's reader, picking
+ * per segment how to combine the filter with scoring from the filter's estimated cardinality:
+ * <ul>
+ *     <li>{@link Strategy#EXACT_SCAN} when the filter matches at most [selectivity_threshold]
+ *     of the segment: the filter's iterator drives, and every matching document is scored.</li>
+ *     <li>{@link Strategy#TOP_K} when the filter is broader, a {@link ScoreCache} is used and
+ *     every vector of the segment matches the query vector: the segment's best vectors are
+ *     taken regardless of the filter, from the cache once a query used them, then post-filtered.
+ *     When fewer than k of them pass, the segment falls back to {@link Strategy#EXACT_SCAN}.</li>
+ * </ul>
+ * Both strategies collect the same documents, so results do not depend on segment layout.
+ * Vectors are scored by {@link VectorSegmentScorer}, like the script does.
+ * Strategies are part of {@link #toString(String)}, and with it of the profile output.
+ */
+public class FastCosineQuery extends Query {
+    enum Strategy {
+        EXACT_SCAN,
+        TOP_K;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * Orders the worst of two documents first: lower score, then higher doc id.
+     */
+    private static final Comparator<ScoreDoc> WORST_FIRST = (a, b) -> a.score != b.score
+            ? Float.compare(a.score, b.score)
+            : Integer.compare(b.doc, a.doc);
+
+    private final String field;
+    private final QueryVector queryVector;
+    private final Query filter;
+    private final int k;
+    private final float selectivityThreshold;
+    // Whether an invalid document vector fails the query, rather than being skipped
+    private final boolean failOnInvalid;
+    private final VectorMetadataCache metadataCache;
+    /**
+     * Cache of segment top docs, {@code null} to always use {@link Strategy#EXACT_SCAN}
+     */
+    private final ScoreCache scoreCache;
+    /**
+     * Strategy per leaf ord, {@code null} until rewritten against a reader
+     */
+    private final Strategy[] strategies;
+    /**
+     * The reader's top k, by ascending doc id, {@code null} until rewritten against a reader
+     */
+    private final int[] docs;
+    private final float[] scores;
+
+    FastCosineQuery(
+            String field,
+            QueryVector queryVector,
+            Query filter,
+            int k,
+            float selectivityThreshold,
+            boolean failOnInvalid,
+            VectorMetadataCache metadataCache,
+            ScoreCache scoreCache
+    ) {
+        this(
+                field,
+                queryVector,
+                filter,
+                k,
+                selectivityThreshold,
+                failOnInvalid,
+                metadataCache,
+                scoreCache,
+                null,
+                null,
+                null
+        );
+    }
+
+    private FastCosineQuery(
+            String field,
+            QueryVector queryVector,
+            Query filter,
+            int k,
+            float selectivityThreshold,
+            boolean failOnInvalid,
+            VectorMetadataCache metadataCache,
+            ScoreCache scoreCache,
+            Strategy[] strategies,
+            int[] docs,
+            float[] scores
+    ) {
+        this.field = field;
+        this.queryVector = queryVector;
+        this.filter = filter;
+        this.k = k;
+        this.selectivityThreshold = selectivityThreshold;
+        this.failOnInvalid = failOnInvalid;
+        this.metadataCache = metadataCache;
+        this.scoreCache = scoreCache;
+        this.strategies = strategies;
+        this.docs = docs;
+        this.scores = scores;
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        final Query rewrittenFilter = filter.rewrite(reader);
+        if (rewrittenFilter != filter) {
+            return new FastCosineQuery(
+                    field,
+                    queryVector,
+                    rewrittenFilter,
+                    k,
+                    selectivityThreshold,
+                    failOnInvalid,
+                    metadataCache,
+                    scoreCache
+            );
+        }
+        if (docs != null) {
+            return this;
+        }
+
+        final IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setQueryCache(null);
+        final Weight filterWeight = searcher.createWeight(filter, false, 1f);
+        final Strategy[] chosen = new Strategy[reader.leaves().size()];
+        final PriorityQueue<ScoreDoc> topDocs = new PriorityQueue<>(k, WORST_FIRST);
+        for (LeafReaderContext context : reader.leaves()) {
+            chosen[context.ord] = collect(context, filterWeight, topDocs);
+        }
+
+        final ScoreDoc[] sorted = topDocs.toArray(new ScoreDoc[0]);
+        Arrays.sort(sorted, Comparator.comparingInt(d -> d.doc));
+        final int[] topDocIDs = new int[sorted.length];
+        final float[] topScores = new float[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            topDocIDs[i] = sorted[i].doc;
+            topScores[i] = sorted[i].score;
+        }
+        return new FastCosineQuery(
+                field,
+                queryVector,
+                filter,
+                k,
+                selectivityThreshold,
+                failOnInvalid,
+                metadataCache,
+                scoreCache,
+                chosen,
+                topDocIDs,
+                topScores
+        );
+    }
+
+    private Strategy chooseStrategy(long filterCost, int maxDoc) {
+        // Scoring the segment's best vectors costs a full scan, only worth it when reused
+        if (scoreCache == null || filterCost <= k || filterCost <= (double) selectivityThreshold * maxDoc) {
+            return Strategy.EXACT_SCAN;
+        }
+        return Strategy.TOP_K;
+    }
+
+    /**
+     * @return Number of unfiltered candidates a {@link Strategy#TOP_K} segment keeps. Twice as many
+     * as a filter matching exactly [selectivity_threshold] of the segment needs to leave k.
+     */
+    int numCandidates() {
+        return (int) Math.min(Integer.MAX_VALUE, 2 * (long) Math.ceil(k / (double) selectivityThreshold));
+    }
+
+    /**
+     * Offer the segment's filtered documents to the reader's top k.
+     *
+     * @return The strategy used
+     */
+    private Strategy collect(
+            LeafReaderContext context,
+            Weight filterWeight,
+            PriorityQueue<ScoreDoc> topDocs
+    ) throws IOException {
+        ScorerSupplier filterScorerSupplier = filterWeight.scorerSupplier(context);
+        final BinaryDocValues binaryDocValues = context.reader().getBinaryDocValues(field);
+        if (filterScorerSupplier == null || binaryDocValues == null) {
+            return Strategy.EXACT_SCAN;
+        }
+        final VectorSegmentScorer scorer = VectorSegmentScorer.create(
+                context,
+                field,
+                queryVector,
+                failOnInvalid,
+                metadataCache
+        );
+        // Candidates are taken regardless of the filter, so they may only hold valid vectors
+        if (chooseStrategy(filterScorerSupplier.cost(), context.reader().maxDoc()) == Strategy.TOP_K
+                && scorer.isFixedDimension()) {
+            final ScoreDoc[] candidates = scoreCache.getTopDocs(
+                    context,
+                    field,
+                    queryVector,
+                    numCandidates(),
+                    () -> topCandidates(context, scorer)
+            );
+            final DocIdSetIterator filterIterator = filterScorerSupplier.get(candidates.length).iterator();
+            if (postFilter(context, filterIterator, candidates, topDocs)) {
+                return Strategy.TOP_K;
+            }
+            // A supplier only hands out one scorer
+            filterScorerSupplier = filterWeight.scorerSupplier(context);
+        }
+        exactScan(context, binaryDocValues, scorer, filterScorerSupplier.get(Long.MAX_VALUE).iterator(), topDocs);
+        return Strategy.EXACT_SCAN;
+    }
+
+    /**
+     * Score every live document that passes the filter and has a valid vector.
+     */
+    private void exactScan(
+            LeafReaderContext context,
+            BinaryDocValues binaryDocValues,
+            VectorSegmentScorer scorer,
+            DocIdSetIterator filterIterator,
+            PriorityQueue<ScoreDoc> topDocs
+    ) throws IOException {
+        final Bits liveDocs = context.reader().getLiveDocs();
+        for (int doc = filterIterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = filterIterator.nextDoc()) {
+            if ((liveDocs == null || liveDocs.get(doc)) && binaryDocValues.advanceExact(doc)) {
+                final float score;
+                try {
+                    score = (float) scorer.score(doc, binaryDocValues.binaryValue().bytes);
+                } catch (IllegalArgumentException e) {
+                    scorer.onInvalid(doc, e);
+                    continue;
+                }
+                offer(topDocs, k, context.docBase + doc, score);
+            }
+        }
+    }
+
+    /**
+     * The segment's {@link #numCandidates()} best vectors, regardless of the filter and of deletions.
+     *
+     * @param scorer A scorer of a segment whose vectors are all valid
+     * @return The candidates by ascending doc id
+     */
+    private ScoreDoc[] topCandidates(LeafReaderContext context, VectorSegmentScorer scorer) throws IOException {
+        final BinaryDocValues binaryDocValues = context.reader().getBinaryDocValues(field);
+        final int numCandidates = numCandidates();
+        final PriorityQueue<ScoreDoc> candidates = new PriorityQueue<>(
+                Math.min(numCandidates, context.reader().maxDoc()) + 1,
+                WORST_FIRST
+        );
+        for (int doc = binaryDocValues.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = binaryDocValues.nextDoc()) {
+            offer(candidates, numCandidates, doc, (float) scorer.score(doc, binaryDocValues.binaryValue().bytes));
+        }
+
+        final ScoreDoc[] sorted = candidates.toArray(new ScoreDoc[0]);
+        Arrays.sort(sorted, Comparator.comparingInt(d -> d.doc));
+        return sorted;
+    }
+
+    /**
+     * Offer the live candidates that pass the filter to the reader's top k. Candidates outside the
+     * segment's top {@link #numCandidates()} rank below every candidate, so once k candidates pass,
+     * no filtered document of the segment can beat them.
+     *
+     * @param candidates See {@link #topCandidates}
+     * @return Whether the segment's filtered top k are known, otherwise nothing was offered
+     */
+    private boolean postFilter(
+            LeafReaderContext context,
+            DocIdSetIterator filterIterator,
+            ScoreDoc[] candidates,
+            PriorityQueue<ScoreDoc> topDocs
+    ) throws IOException {
+        final Bits liveDocs = context.reader().getLiveDocs();
+        final List<ScoreDoc> passed = new ArrayList<>(Math.min(k, candidates.length));
+        for (ScoreDoc candidate : candidates) {
+            if (liveDocs != null && !liveDocs.get(candidate.doc)) {
+                continue;
+            }
+            final int filterDoc = filterIterator.docID() < candidate.doc
+                    ? filterIterator.advance(candidate.doc)
+                    : filterIterator.docID();
+            if (filterDoc == DocIdSetIterator.NO_MORE_DOCS) {
+                break;
+            }
+            if (filterDoc == candidate.doc) {
+                passed.add(candidate);
+            }
+        }
+
+        // Fewer candidates than asked for means the segment has no other vectors
+        if (passed.size() < k && candidates.length >= numCandidates()) {
+            return false;
+        }
+        for (ScoreDoc doc : passed) {
+            offer(topDocs, k, context.docBase + doc.doc, doc.score);
+        }
+        return true;
+    }
+
+    /**
+     * Add a document to a queue holding the best {@code size} documents.
+     */
+    private static void offer(PriorityQueue<ScoreDoc> queue, int size, int doc, float score) {
+        if (queue.size() < size) {
+            queue.add(new ScoreDoc(doc, score));
+        } else {
+            final ScoreDoc worst = queue.peek();
+            if (score > worst.score || (score == worst.score && doc < worst.doc)) {
+                queue.poll();
+                queue.add(new ScoreDoc(doc, score));
+            }
+        }
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores, float boost) throws IOException {
+        if (docs == null) {
+            throw new IllegalStateException("[" + FastCosineQueryBuilder.NAME + "] query must be rewritten first");
+        }
+        final Weight filterWeight = searcher.createWeight(filter, false, 1f);
+        return new Weight(this) {
+            @Override
+            public void extractTerms(Set<Term> terms) {
+                filterWeight.extractTerms(terms);
+            }
+
+            @Override
+            public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+                final int index = Arrays.binarySearch(docs, context.docBase + doc);
+                if (index >= 0) {
+                    return Explanation.match(
+                            boost * scores[index],
+                            String.format(
+                                    Locale.ROOT,
+                                    "cosineSimilarity(doc['%s'].value, %s), among the top [%d] using [%s]",
+                                    field,
+                                    queryVector,
+                                    k,
+                                    strategies[context.ord]
+                            )
+                    );
+                }
+                return explainNoMatch(context, doc, filterWeight);
+            }
+
+            @Override
+            public Scorer scorer(LeafReaderContext context) {
+                final int from = lowerBound(context.docBase);
+                final int to = lowerBound(context.docBase + context.reader().maxDoc());
+                if (from == to) {
+                    return null;
+                }
+                return new TopDocsScorer(this, from, to, context.docBase, boost);
+            }
+
+            @Override
+            public boolean isCacheable(LeafReaderContext context) {
+                // Matches depend on the whole reader's top k
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Explain a document outside the top k by checking it alone, without collecting the segment again.
+     */
+    private Explanation explainNoMatch(LeafReaderContext context, int doc, Weight filterWeight) throws IOException {
+        final Scorer filterScorer = filterWeight.scorer(context);
+        if (filterScorer == null || filterScorer.iterator().advance(doc) != doc) {
+            return Explanation.noMatch("Document does not match [filter]");
+        }
+        final BinaryDocValues binaryDocValues = context.reader().getBinaryDocValues(field);
+        if (binaryDocValues == null || !binaryDocValues.advanceExact(doc)) {
+            return Explanation.noMatch("Document has no vector in [" + field + "]");
+        }
+        final double score;
+        try {
+            score = queryVector.score(doc, new ByteArrayDataInput(), binaryDocValues.binaryValue().bytes);
+        } catch (IllegalArgumentException e) {
+            return Explanation.noMatch(e.getMessage());
+        }
+        return Explanation.noMatch(
+                String.format(
+                        Locale.ROOT,
+                        "cosineSimilarity(doc['%s'].value, %s) = %f is not among the top [%d]",
+                        field,
+                        queryVector,
+                        score,
+                        k
+                )
+        );
+    }
+
+    /**
+     * @return Index of the first top doc at or above {@code doc}
+     */
+    private int lowerBound(int doc) {
+        final int index = Arrays.binarySearch(docs, doc);
+        return index >= 0 ? index : -1 - index;
+    }
+
+    /**
+     * Iterates over the top docs of one segment, {@code docs[from, to)}.
+     */
+    private final class TopDocsScorer extends Scorer {
+        private final int from;
+        private final int to;
+        private final int docBase;
+        private final float boost;
+        private int index;
+
+        private final DocIdSetIterator iterator = new DocIdSetIterator() {
+            @Override
+            public int docID() {
+                if (index < from) {
+                    return -1;
+                }
+                return index < to ? docs[index] - docBase : NO_MORE_DOCS;
+            }
+
+            @Override
+            public int nextDoc() {
+                index++;
+                return docID();
+            }
+
+            @Override
+            public int advance(int target) {
+                do {
+                    index++;
+                } while (index < to && docs[index] - docBase < target);
+                return docID();
+            }
+
+            @Override
+            public long cost() {
+                return to - from;
+            }
+        };
+
+        TopDocsScorer(Weight weight, int from, int to, int docBase, float boost) {
+            super(weight);
+            this.from = from;
+            this.to = to;
+            this.docBase = docBase;
+            this.boost = boost;
+            this.index = from - 1;
+        }
+
+        @Override
+        public int docID() {
+            return iterator.docID();
+        }
+
+        @Override
+        public float score() {
+            return boost * scores[index];
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return iterator;
+        }
+    }
+
+    @Override
+    public String toString(String defaultField) {
+        final StringBuilder sb = new StringBuilder("fast_cosine(")
+                .append(field)
+                .append(", k=").append(k)
+                .append(", selectivity_threshold=").append(selectivityThreshold)
+                .append(", cache=").append(scoreCache != null)
+                .append(", on_invalid=").append(failOnInvalid ? "fail" : "skip")
+                .append(", filter=").append(filter.toString(defaultField));
+        if (strategies != null) {
+            sb.append(", strategies=").append(Arrays.toString(strategies));
+        }
+        return sb.append(')').toString();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!sameClassAs(other)) {
+            return false;
+        }
+        FastCosineQuery that = (FastCosineQuery) other;
+        return k == that.k
+                && selectivityThreshold == that.selectivityThreshold
+                && failOnInvalid == that.failOnInvalid
+                && (scoreCache != null) == (that.scoreCache != null)
+                && field.equals(that.field)
+                && queryVector.isSparse() == that.queryVector.isSparse()
+                && queryVector.getEncodedVector().equals(that.queryVector.getEncodedVector())
+                && filter.equals(that.filter)
+                && Arrays.equals(strategies, that.strategies)
+                && Arrays.equals(docs, that.docs)
+                && Arrays.equals(scores, that.scores);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(
+                classHash(),
+                field,
+                queryVector.isSparse(),
+                queryVector.getEncodedVector(),
+                filter,
+                k,
+                selectivityThreshold,
+                failOnInvalid,
+                scoreCache != null,
+                Arrays.hashCode(strategies),
+                Arrays.hashCode(docs)
+        );
+    }
+}
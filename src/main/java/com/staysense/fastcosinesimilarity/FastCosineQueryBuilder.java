@@ -0,0 +1,303 @@
+package com.staysense.fastcosinesimilarity;
+
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.MatchAllQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryRewriteContext;
+import org.elasticsearch.index.query.QueryShardContext;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * The [fast_cosine] query, see {@link FastCosineQuery}:
+ * <pre>
+ * {
+ *   "fast_cosine": {
+ *     "field": "embeddedVector",
+ *     "encoded_vector": "...",
+ *     "encoding": "dense",
+ *     "filter": { "term": { "region": "se" } },
+ *     "k": 10,
+ *     "selectivity_threshold": 0.5,
+ *     "cache": false,
+ *     "on_invalid": "fail"
+ *   }
+ * }
+ * </pre>
+ */
+public class FastCosineQueryBuilder extends AbstractQueryBuilder<FastCosineQueryBuilder> {
+    public static final String NAME = "fast_cosine";
+
+    public static final int DEFAULT_K = 10;
+    public static final float DEFAULT_SELECTIVITY_THRESHOLD = 0.5f;
+
+    private static final ParseField FIELD_FIELD = new ParseField("field");
+    private static final ParseField ENCODED_VECTOR_FIELD = new ParseField("encoded_vector");
+    private static final ParseField ENCODING_FIELD = new ParseField("encoding");
+    private static final ParseField FILTER_FIELD = new ParseField("filter");
+    private static final ParseField K_FIELD = new ParseField("k");
+    private static final ParseField SELECTIVITY_THRESHOLD_FIELD = new ParseField("selectivity_threshold");
+    private static final ParseField CACHE_FIELD = new ParseField("cache");
+    private static final ParseField ON_INVALID_FIELD = new ParseField("on_invalid");
+
+    private final String field;
+    private final String encodedVector;
+    // null for dense
+    private String encoding;
+    private QueryBuilder filter = new MatchAllQueryBuilder();
+    private int k = DEFAULT_K;
+    private float selectivityThreshold = DEFAULT_SELECTIVITY_THRESHOLD;
+    private boolean cache = false;
+    private String onInvalid = "fail";
+
+    public FastCosineQueryBuilder(String field, String encodedVector) {
+        if (field == null) {
+            throw new IllegalArgumentException("[" + NAME + "] requires [" + FIELD_FIELD.getPreferredName() + "]");
+        }
+        if (encodedVector == null) {
+            throw new IllegalArgumentException(
+                    "[" + NAME + "] requires [" + ENCODED_VECTOR_FIELD.getPreferredName() + "]"
+            );
+        }
+        this.field = field;
+        this.encodedVector = encodedVector;
+    }
+
+    public FastCosineQueryBuilder(StreamInput in) throws IOException {
+        super(in);
+        field = in.readString();
+        encodedVector = in.readString();
+        encoding = in.readOptionalString();
+        filter = in.readNamedWriteable(QueryBuilder.class);
+        k = in.readVInt();
+        selectivityThreshold = in.readFloat();
+        cache = in.readBoolean();
+        onInvalid = in.readString();
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeString(field);
+        out.writeString(encodedVector);
+        out.writeOptionalString(encoding);
+        out.writeNamedWriteable(filter);
+        out.writeVInt(k);
+        out.writeFloat(selectivityThreshold);
+        out.writeBoolean(cache);
+        out.writeString(onInvalid);
+    }
+
+    public FastCosineQueryBuilder encoding(String encoding) {
+        if (encoding != null && !"dense".equals(encoding) && !"sparse".equals(encoding)) {
+            throw new IllegalArgumentException(
+                    "Unknown [encoding] [" + encoding + "], expected [dense] or [sparse]"
+            );
+        }
+        this.encoding = encoding;
+        return this;
+    }
+
+    public FastCosineQueryBuilder filter(QueryBuilder filter) {
+        if (filter == null) {
+            throw new IllegalArgumentException("[" + NAME + "] [filter] cannot be null");
+        }
+        this.filter = filter;
+        return this;
+    }
+
+    public FastCosineQueryBuilder k(int k) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("[" + NAME + "] [k] must be positive, got [" + k + "]");
+        }
+        this.k = k;
+        return this;
+    }
+
+    public FastCosineQueryBuilder selectivityThreshold(float selectivityThreshold) {
+        if (!(selectivityThreshold > 0f && selectivityThreshold <= 1f)) {
+            throw new IllegalArgumentException(
+                    "[" + NAME + "] [selectivity_threshold] must be in (0, 1], got [" + selectivityThreshold + "]"
+            );
+        }
+        this.selectivityThreshold = selectivityThreshold;
+        return this;
+    }
+
+    /**
+     * Whether to keep the best documents of segments scored with a broad filter in the node's
+     * {@link ScoreCache}, for queries sent again with the same vector.
+     */
+    public FastCosineQueryBuilder cache(boolean cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    /**
+     * What to do with documents whose vector does not match the query vector: "fail" the
+     * query, or "skip" them so that they do not match.
+     */
+    public FastCosineQueryBuilder onInvalid(String onInvalid) {
+        VectorSegmentScorer.parseFailOnInvalid(onInvalid);
+        this.onInvalid = onInvalid == null ? "fail" : onInvalid;
+        return this;
+    }
+
+    @Override
+    protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(NAME);
+        builder.field(FIELD_FIELD.getPreferredName(), field);
+        builder.field(ENCODED_VECTOR_FIELD.getPreferredName(), encodedVector);
+        if (encoding != null) {
+            builder.field(ENCODING_FIELD.getPreferredName(), encoding);
+        }
+        builder.field(FILTER_FIELD.getPreferredName(), filter);
+        builder.field(K_FIELD.getPreferredName(), k);
+        builder.field(SELECTIVITY_THRESHOLD_FIELD.getPreferredName(), selectivityThreshold);
+        builder.field(CACHE_FIELD.getPreferredName(), cache);
+        builder.field(ON_INVALID_FIELD.getPreferredName(), onInvalid);
+        printBoostAndQueryName(builder);
+        builder.endObject();
+    }
+
+    public static FastCosineQueryBuilder fromXContent(XContentParser parser) throws IOException {
+        String field = null;
+        String encodedVector = null;
+        String encoding = null;
+        QueryBuilder filter = null;
+        Integer k = null;
+        Float selectivityThreshold = null;
+        boolean cache = false;
+        String onInvalid = null;
+        float boost = DEFAULT_BOOST;
+        String queryName = null;
+
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token == XContentParser.Token.START_OBJECT) {
+                if (FILTER_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    filter = parseInnerQueryBuilder(parser);
+                } else {
+                    throw new ParsingException(
+                            parser.getTokenLocation(),
+                            "[" + NAME + "] query does not support [" + currentFieldName + "]"
+                    );
+                }
+            } else if (token.isValue()) {
+                if (FIELD_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    field = parser.text();
+                } else if (ENCODED_VECTOR_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    encodedVector = parser.text();
+                } else if (ENCODING_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    encoding = parser.text();
+                } else if (K_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    k = parser.intValue();
+                } else if (SELECTIVITY_THRESHOLD_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    selectivityThreshold = parser.floatValue();
+                } else if (CACHE_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    cache = parser.booleanValue();
+                } else if (ON_INVALID_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    onInvalid = parser.text();
+                } else if (BOOST_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    boost = parser.floatValue();
+                } else if (NAME_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    queryName = parser.text();
+                } else {
+                    throw new ParsingException(
+                            parser.getTokenLocation(),
+                            "[" + NAME + "] query does not support [" + currentFieldName + "]"
+                    );
+                }
+            } else {
+                throw new ParsingException(
+                        parser.getTokenLocation(),
+                        "[" + NAME + "] unknown token [" + token + "] after [" + currentFieldName + "]"
+                );
+            }
+        }
+
+        if (field == null || encodedVector == null) {
+            throw new ParsingException(
+                    parser.getTokenLocation(),
+                    "[" + NAME + "] requires [" + FIELD_FIELD.getPreferredName() + "] and ["
+                            + ENCODED_VECTOR_FIELD.getPreferredName() + "]"
+            );
+        }
+
+        FastCosineQueryBuilder builder = new FastCosineQueryBuilder(field, encodedVector).encoding(encoding);
+        if (filter != null) {
+            builder.filter(filter);
+        }
+        if (k != null) {
+            builder.k(k);
+        }
+        if (selectivityThreshold != null) {
+            builder.selectivityThreshold(selectivityThreshold);
+        }
+        return builder.cache(cache).onInvalid(onInvalid).boost(boost).queryName(queryName);
+    }
+
+    @Override
+    protected QueryBuilder doRewrite(QueryRewriteContext queryRewriteContext) throws IOException {
+        QueryBuilder rewrittenFilter = filter.rewrite(queryRewriteContext);
+        if (rewrittenFilter != filter) {
+            return new FastCosineQueryBuilder(field, encodedVector)
+                    .encoding(encoding)
+                    .filter(rewrittenFilter)
+                    .k(k)
+                    .selectivityThreshold(selectivityThreshold)
+                    .cache(cache)
+                    .onInvalid(onInvalid)
+                    .boost(boost)
+                    .queryName(queryName);
+        }
+        return this;
+    }
+
+    @Override
+    protected Query doToQuery(QueryShardContext context) throws IOException {
+        FastCosineSimilarityPlugin.FastCosineScriptFactory scriptFactory = FastCosineSimilarityPlugin.scriptFactory(context);
+        return new FastCosineQuery(
+                field,
+                QueryVector.parse(encodedVector, encoding),
+                filter.toQuery(context),
+                k,
+                selectivityThreshold,
+                VectorSegmentScorer.parseFailOnInvalid(onInvalid),
+                scriptFactory.getMetadataCache(),
+                cache ? scriptFactory.getScoreCache() : null
+        );
+    }
+
+    @Override
+    protected boolean doEquals(FastCosineQueryBuilder other) {
+        return Objects.equals(field, other.field)
+                && Objects.equals(encodedVector, other.encodedVector)
+                && Objects.equals(encoding, other.encoding)
+                && Objects.equals(filter, other.filter)
+                && k == other.k
+                && selectivityThreshold == other.selectivityThreshold
+                && cache == other.cache
+                && Objects.equals(onInvalid, other.onInvalid);
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(field, encodedVector, encoding, filter, k, selectivityThreshold, cache, onInvalid);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return NAME;
+    }
+}
@@ -21,34 +21,121 @@ package com.staysense.fastcosinesimilarity;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
+import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.index.query.QueryShardContext;
+import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.plugins.ScriptPlugin;
+import org.elasticsearch.plugins.SearchPlugin;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
 import org.elasticsearch.script.ScoreScript;
+import org.elasticsearch.script.Script;
 import org.elasticsearch.script.ScriptContext;
 import org.elasticsearch.script.ScriptEngine;
+import org.elasticsearch.script.ScriptType;
+import org.elasticsearch.search.lookup.SearchLookup;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
 
 /**
  * Useful links:
  * https://www.elastic.co/guide/en/elasticsearch/reference/master/modules-scripting-engine.html
  */
-public final class FastCosineSimilarityPlugin extends Plugin implements ScriptPlugin {
+public final class FastCosineSimilarityPlugin extends Plugin implements ScriptPlugin, SearchPlugin, ActionPlugin {
     private static Logger logger = LogManager.getLogger();
 
+    static final String SCRIPT_LANG = "fast_cosine";
+    static final String SCRIPT_SOURCE = "staysense";
+
+    private ScoreCache scoreCache;
+    private VectorMetadataCache metadataCache;
+
+    @Override
+    public List<Setting<?>> getSettings() {
+        return Collections.singletonList(ScoreCache.SIZE_SETTING);
+    }
+
+    @Override
+    public List<QuerySpec<?>> getQueries() {
+        return Collections.singletonList(new QuerySpec<>(
+                FastCosineQueryBuilder.NAME,
+                FastCosineQueryBuilder::new,
+                FastCosineQueryBuilder::fromXContent
+        ));
+    }
+
+    @Override
+    public List<RestHandler> getRestHandlers(
+            Settings settings,
+            RestController restController,
+            ClusterSettings clusterSettings,
+            IndexScopedSettings indexScopedSettings,
+            SettingsFilter settingsFilter,
+            IndexNameExpressionResolver indexNameExpressionResolver,
+            Supplier<DiscoveryNodes> nodesInCluster
+    ) {
+        return Collections.singletonList(new RestFastCosineStatsAction(settings, restController, this));
+    }
 
     @Override
     public ScriptEngine getScriptEngine(Settings settings, Collection<ScriptContext<?>> contexts) {
-        return new FastCosineSimilarityEngine();
+        scoreCache = new ScoreCache(settings);
+        metadataCache = new VectorMetadataCache();
+        return new FastCosineSimilarityEngine(scoreCache, metadataCache);
+    }
+
+    /**
+     * @return This node's score cache, {@code null} until the script engine is created
+     */
+    public ScoreCache getScoreCache() {
+        return scoreCache;
+    }
+
+    /**
+     * @return This node's segment vector metadata, {@code null} until the script engine is created
+     */
+    public VectorMetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    /**
+     * Queries are not handed plugin components, so the [fast_cosine] query reaches the
+     * node's caches through the script engine, which owns them.
+     *
+     * @return The script factory of the node the query runs on
+     */
+    static FastCosineScriptFactory scriptFactory(QueryShardContext context) {
+        ScoreScript.Factory factory = context.getScriptService().compile(
+                new Script(ScriptType.INLINE, SCRIPT_LANG, SCRIPT_SOURCE, Collections.emptyMap()),
+                ScoreScript.CONTEXT
+        );
+        return (FastCosineScriptFactory) factory;
     }
 
     public static class FastCosineSimilarityEngine implements ScriptEngine {
+        private final ScoreCache scoreCache;
+        private final VectorMetadataCache metadataCache;
+
+        FastCosineSimilarityEngine(ScoreCache scoreCache, VectorMetadataCache metadataCache) {
+            this.scoreCache = scoreCache;
+            this.metadataCache = metadataCache;
+        }
+
         @Override
         public String getType() {
-            return "fast_cosine";
+            return SCRIPT_LANG;
         }
 
         @Override
@@ -58,18 +145,41 @@ public final class FastCosineSimilarityPlugin extends Plugin implements ScriptPl
                 throw new IllegalArgumentException(getType() + " scripts cannot be used for context [" + context.name + "]");
             }
             // we use the script "source" as the script identifier
-            if ("staysense".equals(scriptSource)) {
-                ScoreScript.Factory factory = FastCosineLeafFactory::new;
-                return context.factoryClazz.cast(factory);
+            if (SCRIPT_SOURCE.equals(scriptSource)) {
+                return context.factoryClazz.cast(new FastCosineScriptFactory(scoreCache, metadataCache));
             }
             throw new IllegalArgumentException("Unknown script name " + scriptSource);
         }
 
         @Override
         public void close() {
-            // optionally close resources
+            scoreCache.clear();
+            metadataCache.clear();
         }
 
     }
 
+    static final class FastCosineScriptFactory implements ScoreScript.Factory {
+        private final ScoreCache scoreCache;
+        private final VectorMetadataCache metadataCache;
+
+        FastCosineScriptFactory(ScoreCache scoreCache, VectorMetadataCache metadataCache) {
+            this.scoreCache = scoreCache;
+            this.metadataCache = metadataCache;
+        }
+
+        @Override
+        public ScoreScript.LeafFactory newFactory(Map<String, Object> params, SearchLookup lookup) {
+            return new FastCosineLeafFactory(params, lookup, metadataCache);
+        }
+
+        ScoreCache getScoreCache() {
+            return scoreCache;
+        }
+
+        VectorMetadataCache getMetadataCache() {
+            return metadataCache;
+        }
+    }
+
 }
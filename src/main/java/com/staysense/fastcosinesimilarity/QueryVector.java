@@ -0,0 +1,167 @@
+package com.staysense.fastcosinesimilarity;
+
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.elasticsearch.common.hash.MessageDigests;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Decoded [encoded_vector] parameter in either encoding, together with whatever
+ * the scoring loops of that encoding need precomputed: the square sum, and for
+ * sparse vectors the scattered dense array when it is small enough.
+ */
+class QueryVector {
+    private final String encodedVector;
+    private final boolean sparse;
+    // Decoded dense vector, null when sparse
+    private final double[] denseVector;
+    // Decoded sparse vector, null when dense
+    private final SparseVector sparseVector;
+    // sparseVector scattered into a dense array, null when merge-joining instead
+    private final float[] sparseScatter;
+    // Square sum of the vector
+    private final double norm;
+    // SHA-256 of encodedVector, computed on first use
+    private byte[] digest;
+
+    private QueryVector(
+            String encodedVector,
+            boolean sparse,
+            double[] denseVector,
+            SparseVector sparseVector,
+            float[] sparseScatter,
+            double norm
+    ) {
+        this.encodedVector = encodedVector;
+        this.sparse = sparse;
+        this.denseVector = denseVector;
+        this.sparseVector = sparseVector;
+        this.sparseScatter = sparseScatter;
+        this.norm = norm;
+    }
+
+    /**
+     * @param encodedVector The base64 [encoded_vector] parameter
+     * @param encoding The [encoding] parameter, "dense" when {@code null}
+     * @throws IllegalArgumentException If the encoding is unknown or the vector cannot be decoded
+     */
+    static QueryVector parse(String encodedVector, Object encoding) {
+        if (encoding == null || "dense".equals(encoding)) {
+            final double[] denseVector = Util.convertBase64ToArray(encodedVector);
+            double norm = 0d;
+            for (double v : denseVector) {
+                norm += Math.pow(v, 2.0d);
+            }
+            return new QueryVector(encodedVector, false, denseVector, null, null, norm);
+        }
+        if ("sparse".equals(encoding)) {
+            final SparseVector sparseVector = Util.convertBase64ToSparse(encodedVector);
+            // Scatter when the dense array stays small, otherwise merge-join
+            final float[] sparseScatter = sparseVector.getDimension() <= SparseVector.MAX_SCATTER_DIMENSION
+                    ? sparseVector.toDense()
+                    : null;
+            return new QueryVector(encodedVector, true, null, sparseVector, sparseScatter, sparseVector.getSquareSum());
+        }
+        throw new IllegalArgumentException(
+                "Unknown [encoding] [" + encoding + "], expected [dense] or [sparse]"
+        );
+    }
+
+    String getEncodedVector() {
+        return encodedVector;
+    }
+
+    boolean isSparse() {
+        return sparse;
+    }
+
+    /**
+     * @return SHA-256 of the encoded vector, to key caches on without holding the whole vector
+     */
+    byte[] digest() {
+        // Racing threads compute the same digest
+        if (digest == null) {
+            digest = MessageDigests.sha256().digest(encodedVector.getBytes(StandardCharsets.UTF_8));
+        }
+        return digest;
+    }
+
+    /**
+     * @return Whether segments can ever be scored by {@link #scoreFixedDimension}. Merge-joined
+     * sparse vectors cannot, so there is no point in computing segment metadata for them.
+     */
+    boolean supportsFixedDimension() {
+        return !sparse || sparseScatter != null;
+    }
+
+    /**
+     * @return Whether every vector in the segment can be scored by {@link #scoreFixedDimension}
+     */
+    boolean matchesAll(VectorSegmentMetadata metadata) {
+        if (!supportsFixedDimension()) {
+            return false;
+        }
+        return sparse
+                ? metadata.allSparseWithin(sparseScatter.length)
+                : metadata.allDense(denseVector.length);
+    }
+
+    /**
+     * Score a document vector, checking that it can be decoded.
+     *
+     * @throws IllegalArgumentException If the document vector is invalid or does not match the query
+     */
+    double score(int currentDocID, ByteArrayDataInput byteArrayDataInput, byte[] fieldBytes) {
+        if (!sparse) {
+            return FastCosineLeafFactory.calculateScore(
+                    currentDocID,
+                    byteArrayDataInput,
+                    fieldBytes,
+                    denseVector,
+                    norm
+            );
+        }
+        if (sparseScatter != null) {
+            return FastCosineLeafFactory.calculateSparseScore(
+                    currentDocID,
+                    byteArrayDataInput,
+                    fieldBytes,
+                    sparseScatter,
+                    norm
+            );
+        }
+        return FastCosineLeafFactory.calculateSparseMergeScore(
+                currentDocID,
+                byteArrayDataInput,
+                fieldBytes,
+                sparseVector.getIndices(),
+                sparseVector.getValues(),
+                norm
+        );
+    }
+
+    /**
+     * Score a document vector of a segment for which {@link #matchesAll} holds, without checks.
+     */
+    double scoreFixedDimension(ByteArrayDataInput byteArrayDataInput, byte[] fieldBytes) {
+        return sparse
+                ? FastCosineLeafFactory.calculateFixedDimensionSparseScore(
+                        byteArrayDataInput,
+                        fieldBytes,
+                        sparseScatter,
+                        norm
+                )
+                : FastCosineLeafFactory.calculateFixedDimensionScore(
+                        byteArrayDataInput,
+                        fieldBytes,
+                        denseVector,
+                        norm
+                );
+    }
+
+    @Override
+    public String toString() {
+        return sparse ? sparseVector.toString() : Arrays.toString(denseVector);
+    }
+}
@@ -0,0 +1,53 @@
+package com.staysense.fastcosinesimilarity;
+
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.IOException;
+
+/**
+ * [GET /_fast_cosine/stats]: the plugin's caches on the node that receives the request.
+ * Stats are node local, send the request to each node to monitor.
+ */
+public class RestFastCosineStatsAction extends BaseRestHandler {
+    private final FastCosineSimilarityPlugin plugin;
+
+    RestFastCosineStatsAction(Settings settings, RestController controller, FastCosineSimilarityPlugin plugin) {
+        super(settings);
+        this.plugin = plugin;
+        controller.registerHandler(RestRequest.Method.GET, "/_fast_cosine/stats", this);
+    }
+
+    @Override
+    public String getName() {
+        return "fast_cosine_stats_action";
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        return channel -> {
+            XContentBuilder builder = channel.newBuilder();
+            builder.startObject();
+            builder.field("node", Node.NODE_NAME_SETTING.get(settings));
+            if (plugin.getScoreCache() != null) {
+                builder.startObject("score_cache");
+                plugin.getScoreCache().toXContent(builder, request);
+                builder.endObject();
+            }
+            if (plugin.getMetadataCache() != null) {
+                builder.startObject("segment_metadata");
+                plugin.getMetadataCache().toXContent(builder, request);
+                builder.endObject();
+            }
+            builder.endObject();
+            channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+        };
+    }
+}
@@ -0,0 +1,200 @@
+package com.staysense.fastcosinesimilarity;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.common.CheckedSupplier;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Node level cache of per-segment top documents, for [fast_cosine] queries that are
+ * sent over and over with the same vector and [cache] enabled.
+ *
+ * Entries are keyed by (segment core, field, encoding, SHA-256 of the encoded query
+ * vector, number of documents) and hold the segment's best documents for that vector,
+ * regardless of any filter, see {@link FastCosineQuery.Strategy#TOP_K}. Segment cores
+ * survive refreshes, so after a refresh only new segments are scored again; entries of
+ * closed segments are dropped eagerly, the rest are evicted least recently used first.
+ */
+public class ScoreCache implements ToXContentFragment {
+    private static Logger logger = LogManager.getLogger();
+
+    public static final Setting<ByteSizeValue> SIZE_SETTING = Setting.memorySizeSetting(
+            "fast_cosine.score_cache.size",
+            "1%",
+            Setting.Property.NodeScope
+    );
+
+    /**
+     * Estimated memory used by each cached document
+     */
+    private static final long BYTES_PER_DOC = RamUsageEstimator.NUM_BYTES_OBJECT_REF
+            + RamUsageEstimator.shallowSizeOfInstance(ScoreDoc.class);
+
+    private final Cache<Key, ScoreDoc[]> cache;
+    /**
+     * Segment cores we have registered a closed listener on.
+     */
+    private final Set<IndexReader.CacheKey> registeredCores = ConcurrentHashMap.newKeySet();
+
+    ScoreCache(Settings settings) {
+        this(SIZE_SETTING.get(settings).getBytes());
+    }
+
+    ScoreCache(long maxBytes) {
+        cache = CacheBuilder.<Key, ScoreDoc[]>builder()
+                .setMaximumWeight(maxBytes)
+                .weigher((key, topDocs) -> key.ramBytesUsed() + topDocs.length * BYTES_PER_DOC)
+                .build();
+    }
+
+    /**
+     * @param size Number of top documents asked for
+     * @param loader Computes the segment's top documents
+     * @return The segment's top documents, shared with every other query for the same vector and
+     * size. Callers must not modify them.
+     */
+    ScoreDoc[] getTopDocs(
+            LeafReaderContext context,
+            String field,
+            QueryVector queryVector,
+            int size,
+            CheckedSupplier<ScoreDoc[], IOException> loader
+    ) throws IOException {
+        final IndexReader.CacheHelper cacheHelper = context.reader().getCoreCacheHelper();
+        if (cacheHelper == null) {
+            return loader.get();
+        }
+
+        final IndexReader.CacheKey coreKey = cacheHelper.getKey();
+        if (registeredCores.add(coreKey)) {
+            cacheHelper.addClosedListener(this::onClose);
+        }
+
+        final Key key = new Key(coreKey, field, queryVector.isSparse(), queryVector.digest(), size);
+        final ScoreDoc[] cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        // Scored outside of the cache's locks, queries racing on the same segment may each score it
+        final ScoreDoc[] topDocs = loader.get();
+        cache.put(key, topDocs);
+        if (!registeredCores.contains(coreKey)) {
+            // Closed while scoring, do not leak the entry
+            cache.invalidate(key);
+        }
+        logger.debug(
+                "Caching top [{}] docs for field [{}] of [{}], [{}] segments / [{}] bytes cached",
+                topDocs.length,
+                field,
+                context.reader(),
+                cache.count(),
+                cache.weight()
+        );
+        return topDocs;
+    }
+
+    private void onClose(IndexReader.CacheKey coreKey) {
+        registeredCores.remove(coreKey);
+        for (Iterator<Key> iterator = cache.keys().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().coreKey == coreKey) {
+                iterator.remove();
+            }
+        }
+        logger.trace("Dropped cached top docs for closed segment core [{}]", coreKey);
+    }
+
+    public Cache.CacheStats stats() {
+        return cache.stats();
+    }
+
+    /**
+     * @return Number of cached segment top docs
+     */
+    public int count() {
+        return cache.count();
+    }
+
+    /**
+     * @return Estimated memory used by the cached top docs, in bytes
+     */
+    public long weight() {
+        return cache.weight();
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        final Cache.CacheStats stats = stats();
+        builder.field("hits", stats.getHits());
+        builder.field("misses", stats.getMisses());
+        builder.field("evictions", stats.getEvictions());
+        builder.field("count", count());
+        builder.humanReadableField("size_in_bytes", "size", new ByteSizeValue(weight()));
+        return builder;
+    }
+
+    private static final class Key {
+        final IndexReader.CacheKey coreKey;
+        final String field;
+        final boolean sparse;
+        // SHA-256 of the encoded vector, collisions are not a practical concern
+        final byte[] vectorDigest;
+        final int size;
+        final int hashCode;
+
+        Key(IndexReader.CacheKey coreKey, String field, boolean sparse, byte[] vectorDigest, int size) {
+            this.coreKey = coreKey;
+            this.field = field;
+            this.sparse = sparse;
+            this.vectorDigest = vectorDigest;
+            this.size = size;
+            this.hashCode = Objects.hash(coreKey, field, sparse, Arrays.hashCode(vectorDigest), size);
+        }
+
+        long ramBytesUsed() {
+            return (long) field.length() * Character.BYTES + RamUsageEstimator.sizeOf(vectorDigest);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return coreKey == key.coreKey
+                    && sparse == key.sparse
+                    && size == key.size
+                    && field.equals(key.field)
+                    && Arrays.equals(vectorDigest, key.vectorDigest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.staysense.fastcosinesimilarity;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Sparse vector: ascending int indices with their float values.
+ *
+ * Binary layout (big-endian), as stored in the binary field and sent as
+ * [encoded_vector] when [encoding] is "sparse":
+ * <pre>
+ *     int          number of non-zero entries (nnz)
+ *     float        square sum of the values
+ *     int[nnz]     indices, strictly ascending
+ *     float[nnz]   values
+ * </pre>
+ * The square sum is precomputed at encoding time so that scoring does not
+ * have to walk the values twice.
+ */
+public class SparseVector {
+    /**
+     * Size of the nnz and square sum header.
+     */
+    static final int HEADER_BYTES = Integer.BYTES + Float.BYTES;
+    /**
+     * Size of a single (index, value) entry.
+     */
+    static final int ENTRY_BYTES = Integer.BYTES + Float.BYTES;
+    /**
+     * Largest dimension a query vector is scattered into a dense array for, 4MB of floats.
+     * Query vectors with larger indices are scored by merge-join instead.
+     */
+    static final int MAX_SCATTER_DIMENSION = 1 << 20;
+
+    private final int[] indices;
+    private final float[] values;
+    private final double squareSum;
+
+    public SparseVector(int[] indices, float[] values) {
+        if (indices.length != values.length) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            Locale.ENGLISH,
+                            "Sparse vector has [%d] indices but [%d] values",
+                            indices.length,
+                            values.length
+                    )
+            );
+        }
+        for (int i = 0; i < indices.length; i++) {
+            if (indices[i] < 0 || (i > 0 && indices[i] <= indices[i - 1])) {
+                throw new IllegalArgumentException(
+                        "Sparse vector indices must be non-negative and strictly ascending"
+                );
+            }
+        }
+        this.indices = indices;
+        this.values = values;
+
+        double sum = 0d;
+        for (float v : values) {
+            sum += (double) v * v;
+        }
+        this.squareSum = sum;
+    }
+
+    public int[] getIndices() {
+        return indices;
+    }
+
+    public float[] getValues() {
+        return values;
+    }
+
+    /**
+     * @return Sum of the squared values
+     */
+    public double getSquareSum() {
+        return squareSum;
+    }
+
+    /**
+     * @return Largest index + 1
+     */
+    public long getDimension() {
+        return indices.length == 0 ? 0 : indices[indices.length - 1] + 1L;
+    }
+
+    /**
+     * Scatter the values into a dense array, sized to hold the largest index.
+     *
+     * @throws IllegalArgumentException If the dimension is above {@link #MAX_SCATTER_DIMENSION}
+     */
+    public float[] toDense() {
+        if (getDimension() > MAX_SCATTER_DIMENSION) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            Locale.ENGLISH,
+                            "Sparse vector of dimension [%d] is too large to scatter, the limit is [%d]",
+                            getDimension(),
+                            MAX_SCATTER_DIMENSION
+                    )
+            );
+        }
+        final float[] dense = new float[(int) getDimension()];
+        for (int i = 0; i < indices.length; i++) {
+            dense[indices[i]] = values[i];
+        }
+        return dense;
+    }
+
+    public byte[] toBytes() {
+        final ByteBuffer bb = ByteBuffer.allocate(HEADER_BYTES + indices.length * ENTRY_BYTES);
+        bb.putInt(indices.length);
+        bb.putFloat((float) squareSum);
+        for (int index : indices) {
+            bb.putInt(index);
+        }
+        for (float value : values) {
+            bb.putFloat(value);
+        }
+        return bb.array();
+    }
+
+    /**
+     * @throws IllegalArgumentException If the bytes are not a valid sparse vector
+     */
+    public static SparseVector fromBytes(byte[] bytes) {
+        if (bytes.length < HEADER_BYTES) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            Locale.ENGLISH,
+                            "Sparse vector cannot be [%d] bytes long",
+                            bytes.length
+                    )
+            );
+        }
+        final ByteBuffer bb = ByteBuffer.wrap(bytes);
+        final int nnz = bb.getInt();
+        if (nnz < 0 || bytes.length != HEADER_BYTES + (long) nnz * ENTRY_BYTES) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            Locale.ENGLISH,
+                            "Sparse vector of [%d] entries cannot be [%d] bytes long",
+                            nnz,
+                            bytes.length
+                    )
+            );
+        }
+        // Skip the stored square sum, it is recomputed by the constructor
+        bb.getFloat();
+
+        final int[] indices = new int[nnz];
+        bb.asIntBuffer().get(indices);
+        bb.position(bb.position() + nnz * Integer.BYTES);
+        final float[] values = new float[nnz];
+        bb.asFloatBuffer().get(values);
+        return new SparseVector(indices, values);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < indices.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(indices[i]).append(':').append(values[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -28,4 +28,13 @@ public class Util {
         final ByteBuffer encodedBB = Base64.getEncoder().encode(bb);
         return new String(encodedBB.array(), StandardCharsets.UTF_8);
     }
+
+    public static final SparseVector convertBase64ToSparse(String base64Str) {
+        return SparseVector.fromBytes(Base64.getDecoder().decode(base64Str.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public static final String convertSparseToBase64(int[] indices, float[] values) {
+        final byte[] encoded = Base64.getEncoder().encode(new SparseVector(indices, values).toBytes());
+        return new String(encoded, StandardCharsets.UTF_8);
+    }
 }
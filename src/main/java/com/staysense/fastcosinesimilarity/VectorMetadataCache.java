@@ -0,0 +1,187 @@
+package com.staysense.fastcosinesimilarity;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Node level cache of {@link VectorSegmentMetadata}, computed the first time a
+ * segment is scored and dropped when the segment core closes. Entries are a few
+ * dozen bytes each, so the cache is bounded by the number of open segments.
+ *
+ * Computing an entry reads every vector of the segment, so the first query to
+ * score a segment, typically the first one after a refresh or merge, pays for a
+ * full scan of the segment's doc values on top of its own scoring.
+ *
+ * Also counts the documents skipped because of invalid vectors, see the
+ * [on_invalid] parameter of the script and query, and how many scored segments could use the
+ * unchecked fixed dimension loop.
+ */
+public class VectorMetadataCache implements ToXContentFragment {
+    private static Logger logger = LogManager.getLogger();
+
+    private final Map<Key, VectorSegmentMetadata> cache = new ConcurrentHashMap<>();
+    private final Set<IndexReader.CacheKey> registeredCores = ConcurrentHashMap.newKeySet();
+    private final LongAdder skippedDocs = new LongAdder();
+    private final LongAdder fixedDimensionSegments = new LongAdder();
+    private final LongAdder checkedSegments = new LongAdder();
+
+    /**
+     * @return Metadata of the segment's field, or {@code null} if the segment cannot be cached
+     */
+    VectorSegmentMetadata get(LeafReaderContext context, String field, boolean sparse) throws IOException {
+        final IndexReader.CacheHelper cacheHelper = context.reader().getCoreCacheHelper();
+        if (cacheHelper == null) {
+            return null;
+        }
+
+        final IndexReader.CacheKey coreKey = cacheHelper.getKey();
+        if (registeredCores.add(coreKey)) {
+            cacheHelper.addClosedListener(this::onClose);
+        }
+
+        final Key key = new Key(coreKey, field, sparse);
+        final VectorSegmentMetadata cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        /*
+         * Scan outside of the map's locks, so that a large segment does not block queries on
+         * other segments hashed to the same bin. Queries racing on the same segment may each
+         * scan it, the first result stored wins.
+         */
+        final VectorSegmentMetadata metadata = VectorSegmentMetadata.compute(context.reader(), field, sparse);
+        logger.debug("Computed [{}] for field [{}] of [{}]", metadata, field, context.reader());
+        final VectorSegmentMetadata existing = cache.putIfAbsent(key, metadata);
+        if (existing != null) {
+            return existing;
+        }
+        if (!registeredCores.contains(coreKey)) {
+            // Closed while scanning, do not leak the entry
+            cache.remove(key);
+        }
+        if (metadata.getInvalidCount() > 0) {
+            logger.warn(
+                    "[{}] values of field [{}] of [{}] cannot be decoded as [{}] vectors, its docs are checked one by one",
+                    metadata.getInvalidCount(),
+                    field,
+                    context.reader(),
+                    sparse ? "sparse" : "dense"
+            );
+        }
+        return metadata;
+    }
+
+    private void onClose(IndexReader.CacheKey coreKey) {
+        registeredCores.remove(coreKey);
+        cache.keySet().removeIf(key -> key.coreKey == coreKey);
+    }
+
+    void onSkipped() {
+        skippedDocs.increment();
+    }
+
+    /**
+     * @param fixedDimension Whether the segment was scored without per document checks
+     */
+    void onSegmentScored(boolean fixedDimension) {
+        if (fixedDimension) {
+            fixedDimensionSegments.increment();
+        } else {
+            checkedSegments.increment();
+        }
+    }
+
+    /**
+     * @return Number of documents skipped because of invalid vectors since the node started
+     */
+    public long skippedDocs() {
+        return skippedDocs.sum();
+    }
+
+    /**
+     * @return Number of segments scored without per document checks since the node started
+     */
+    public long fixedDimensionSegments() {
+        return fixedDimensionSegments.sum();
+    }
+
+    /**
+     * @return Number of segments scored with per document checks since the node started
+     */
+    public long checkedSegments() {
+        return checkedSegments.sum();
+    }
+
+    /**
+     * @return Number of cached segment fields
+     */
+    public int count() {
+        return cache.size();
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        long invalidVectors = 0;
+        int segmentsWithInvalidVectors = 0;
+        for (VectorSegmentMetadata metadata : cache.values()) {
+            invalidVectors += metadata.getInvalidCount();
+            if (metadata.getInvalidCount() > 0) {
+                segmentsWithInvalidVectors++;
+            }
+        }
+        builder.field("count", count());
+        builder.field("invalid_vectors", invalidVectors);
+        builder.field("segments_with_invalid_vectors", segmentsWithInvalidVectors);
+        builder.field("skipped_docs", skippedDocs());
+        builder.field("fixed_dimension_segments", fixedDimensionSegments());
+        builder.field("checked_segments", checkedSegments());
+        return builder;
+    }
+
+    private static final class Key {
+        final IndexReader.CacheKey coreKey;
+        final String field;
+        final boolean sparse;
+
+        Key(IndexReader.CacheKey coreKey, String field, boolean sparse) {
+            this.coreKey = coreKey;
+            this.field = field;
+            this.sparse = sparse;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return coreKey == key.coreKey
+                    && sparse == key.sparse
+                    && field.equals(key.field);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(coreKey, field, sparse);
+        }
+    }
+}
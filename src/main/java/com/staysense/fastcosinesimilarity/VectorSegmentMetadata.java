@@ -0,0 +1,194 @@
+package com.staysense.fastcosinesimilarity;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Summary of the vectors stored in one segment's field, computed by a single scan
+ * of its binary doc values.
+ *
+ * Dimensions are the vector lengths for dense vectors, and the largest index + 1
+ * for sparse vectors. Values that cannot be decoded in the given encoding, including
+ * those whose stored length runs past the doc value and sparse vectors whose indices
+ * are not strictly ascending, are counted as invalid and left out of everything else.
+ */
+public class VectorSegmentMetadata {
+    private final boolean sparse;
+    private final int count;
+    private final int invalidCount;
+    private final long minDimension;
+    private final long maxDimension;
+    private final double minNorm;
+    private final double maxNorm;
+
+    private VectorSegmentMetadata(
+            boolean sparse,
+            int count,
+            int invalidCount,
+            long minDimension,
+            long maxDimension,
+            double minNorm,
+            double maxNorm
+    ) {
+        this.sparse = sparse;
+        this.count = count;
+        this.invalidCount = invalidCount;
+        this.minDimension = minDimension;
+        this.maxDimension = maxDimension;
+        this.minNorm = minNorm;
+        this.maxNorm = maxNorm;
+    }
+
+    static VectorSegmentMetadata compute(LeafReader reader, String field, boolean sparse) throws IOException {
+        int count = 0;
+        int invalidCount = 0;
+        long minDimension = Long.MAX_VALUE;
+        long maxDimension = 0;
+        double minSquareSum = Double.POSITIVE_INFINITY;
+        double maxSquareSum = 0d;
+
+        final BinaryDocValues binaryDocValues = reader.getBinaryDocValues(field);
+        final ByteArrayDataInput byteArrayDataInput = new ByteArrayDataInput();
+        for (int doc = binaryDocValues == null ? DocIdSetIterator.NO_MORE_DOCS : binaryDocValues.nextDoc();
+             doc != DocIdSetIterator.NO_MORE_DOCS;
+             doc = binaryDocValues.nextDoc()) {
+            final BytesRef fieldBytes = binaryDocValues.binaryValue();
+            byteArrayDataInput.reset(fieldBytes.bytes, fieldBytes.offset, fieldBytes.length);
+
+            // Number of values stored in the field
+            byteArrayDataInput.readVInt();
+            // Length of the first field value
+            final int length = byteArrayDataInput.readVInt();
+            final int position = byteArrayDataInput.getPosition();
+            if (length < 0 || length > fieldBytes.offset + fieldBytes.length - position) {
+                invalidCount++;
+                continue;
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(fieldBytes.bytes, position, length).slice();
+
+            long dimension = 0;
+            double squareSum = 0d;
+            if (sparse) {
+                final int nnz = length < SparseVector.HEADER_BYTES ? -1 : buffer.getInt(0);
+                if (nnz < 0 || length != SparseVector.HEADER_BYTES + (long) nnz * SparseVector.ENTRY_BYTES) {
+                    invalidCount++;
+                    continue;
+                }
+                // Indices must be non-negative and strictly ascending, as checked by every scoring path
+                boolean ascending = true;
+                int previousIndex = -1;
+                for (int i = 0; i < nnz && ascending; i++) {
+                    final int index = buffer.getInt(SparseVector.HEADER_BYTES + i * Integer.BYTES);
+                    ascending = index > previousIndex;
+                    previousIndex = index;
+                }
+                // long, since Integer.MAX_VALUE + 1 would wrap
+                dimension = previousIndex + 1L;
+                if (!ascending) {
+                    invalidCount++;
+                    continue;
+                }
+                squareSum = buffer.getFloat(Integer.BYTES);
+            } else {
+                if (length % Double.BYTES != 0) {
+                    invalidCount++;
+                    continue;
+                }
+                dimension = length / Double.BYTES;
+                for (int i = 0; i < length / Double.BYTES; i++) {
+                    final double v = buffer.getDouble(i * Double.BYTES);
+                    squareSum += v * v;
+                }
+            }
+
+            count++;
+            minDimension = Math.min(minDimension, dimension);
+            maxDimension = Math.max(maxDimension, dimension);
+            minSquareSum = Math.min(minSquareSum, squareSum);
+            maxSquareSum = Math.max(maxSquareSum, squareSum);
+        }
+
+        if (count == 0) {
+            return new VectorSegmentMetadata(sparse, 0, invalidCount, 0, 0, 0d, 0d);
+        }
+        return new VectorSegmentMetadata(
+                sparse,
+                count,
+                invalidCount,
+                minDimension,
+                maxDimension,
+                Math.sqrt(minSquareSum),
+                Math.sqrt(maxSquareSum)
+        );
+    }
+
+    /**
+     * @return Whether every vector in the segment is valid and has exactly {@code dimension} dimensions
+     */
+    boolean allDense(int dimension) {
+        return !sparse && invalidCount == 0 && minDimension == dimension && maxDimension == dimension;
+    }
+
+    /**
+     * @return Whether every vector in the segment is valid and has no index at or above {@code dimension}
+     */
+    boolean allSparseWithin(int dimension) {
+        return sparse && invalidCount == 0 && maxDimension <= dimension;
+    }
+
+    public boolean isSparse() {
+        return sparse;
+    }
+
+    /**
+     * @return Number of valid vectors
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return Number of values that could not be decoded
+     */
+    public int getInvalidCount() {
+        return invalidCount;
+    }
+
+    public long getMinDimension() {
+        return minDimension;
+    }
+
+    public long getMaxDimension() {
+        return maxDimension;
+    }
+
+    public double getMinNorm() {
+        return minNorm;
+    }
+
+    public double getMaxNorm() {
+        return maxNorm;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                Locale.ROOT,
+                "VectorSegmentMetadata[encoding=%s, count=%d, invalid=%d, dimension=[%d, %d], norm=[%f, %f]]",
+                sparse ? "sparse" : "dense",
+                count,
+                invalidCount,
+                minDimension,
+                maxDimension,
+                minNorm,
+                maxNorm
+        );
+    }
+}
@@ -0,0 +1,104 @@
+package com.staysense.fastcosinesimilarity;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.store.ByteArrayDataInput;
+
+import java.io.IOException;
+
+/**
+ * Scores the vectors of one segment against a query vector, for both the script and the
+ * [fast_cosine] query: without per document checks when the segment's
+ * {@link VectorSegmentMetadata} shows that every vector matches the query vector, otherwise
+ * checking each document, with invalid ones handled by the [on_invalid] policy.
+ */
+class VectorSegmentScorer {
+    private static Logger logger = LogManager.getLogger();
+
+    private final QueryVector queryVector;
+    private final boolean failOnInvalid;
+    private final VectorMetadataCache metadataCache;
+    private final boolean fixedDimension;
+    private final ByteArrayDataInput byteArrayDataInput = new ByteArrayDataInput();
+
+    private VectorSegmentScorer(
+            QueryVector queryVector,
+            boolean failOnInvalid,
+            VectorMetadataCache metadataCache,
+            boolean fixedDimension
+    ) {
+        this.queryVector = queryVector;
+        this.failOnInvalid = failOnInvalid;
+        this.metadataCache = metadataCache;
+        this.fixedDimension = fixedDimension;
+    }
+
+    /**
+     * Look up the segment's metadata, computing it on first use, and count the segment as scored.
+     * Only call for segments that have values for the field.
+     */
+    static VectorSegmentScorer create(
+            LeafReaderContext context,
+            String field,
+            QueryVector queryVector,
+            boolean failOnInvalid,
+            VectorMetadataCache metadataCache
+    ) throws IOException {
+        final VectorSegmentMetadata metadata = queryVector.supportsFixedDimension()
+                ? metadataCache.get(context, field, queryVector.isSparse())
+                : null;
+        final boolean fixedDimension = metadata != null && queryVector.matchesAll(metadata);
+        logger.debug("metadata = [{}], fixedDimension = [{}]", metadata, fixedDimension);
+        metadataCache.onSegmentScored(fixedDimension);
+        return new VectorSegmentScorer(queryVector, failOnInvalid, metadataCache, fixedDimension);
+    }
+
+    /**
+     * @param onInvalid The [on_invalid] parameter, "fail" when {@code null}
+     * @return Whether an invalid document vector fails the query, rather than being skipped
+     * @throws IllegalArgumentException If the policy is unknown
+     */
+    static boolean parseFailOnInvalid(Object onInvalid) {
+        if (onInvalid == null || "fail".equals(onInvalid)) {
+            return true;
+        }
+        if ("skip".equals(onInvalid)) {
+            return false;
+        }
+        throw new IllegalArgumentException(
+                "Unknown [on_invalid] [" + onInvalid + "], expected [fail] or [skip]"
+        );
+    }
+
+    /**
+     * @return Whether every vector in the segment is known to match the query vector
+     */
+    boolean isFixedDimension() {
+        return fixedDimension;
+    }
+
+    /**
+     * @param fieldBytes The document's binary doc values
+     * @throws IllegalArgumentException If the document vector cannot be decoded or does not match
+     * the query, see {@link #onInvalid}
+     */
+    double score(int docID, byte[] fieldBytes) {
+        if (fixedDimension) {
+            return queryVector.scoreFixedDimension(byteArrayDataInput, fieldBytes);
+        }
+        return queryVector.score(docID, byteArrayDataInput, fieldBytes);
+    }
+
+    /**
+     * Apply the [on_invalid] policy to a document {@link #score} rejected: rethrow under fail,
+     * count it as skipped otherwise.
+     */
+    void onInvalid(int docID, IllegalArgumentException e) {
+        if (failOnInvalid) {
+            throw e;
+        }
+        logger.trace("Skipping doc with ID [{}]: {}", docID, e.getMessage());
+        metadataCache.onSkipped();
+    }
+}
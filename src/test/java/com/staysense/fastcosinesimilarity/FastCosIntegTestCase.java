@@ -4,9 +4,16 @@ import com.carrotsearch.randomizedtesting.generators.RandomNumbers;
 import com.carrotsearch.randomizedtesting.generators.RandomStrings;
 import org.elasticsearch.action.admin.indices.mapping.put.PutMappingResponse;
 import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.plugins.PluginsService;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
 import org.elasticsearch.test.ESIntegTestCase;
 
 import java.io.IOException;
@@ -18,6 +25,10 @@ import java.util.Base64;
 import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
 
 public abstract class FastCosIntegTestCase extends ESIntegTestCase {
     /**
@@ -115,9 +126,85 @@ public abstract class FastCosIntegTestCase extends ESIntegTestCase {
                 .endObject();
     }
 
+    public QueryBuilder fastCosineQuery(Map<String, Object> params) {
+        return QueryBuilders.functionScoreQuery(
+                ScoreFunctionBuilders.scriptFunction(new Script(
+                        ScriptType.INLINE,
+                        "fast_cosine",
+                        "staysense",
+                        params
+                ))
+        );
+    }
+
+    /**
+     * @return A plugin statistic summed over all nodes
+     */
+    public long sumOverNodes(ToLongFunction<FastCosineSimilarityPlugin> stat) {
+        long sum = 0;
+        for (PluginsService pluginsService : internalCluster().getInstances(PluginsService.class)) {
+            for (FastCosineSimilarityPlugin plugin : pluginsService.filterPlugins(FastCosineSimilarityPlugin.class)) {
+                sum += stat.applyAsLong(plugin);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @return Score cache hits summed over all nodes
+     */
+    public long scoreCacheHits() {
+        return sumOverNodes(plugin -> plugin.getScoreCache().stats().getHits());
+    }
+
+    /**
+     * @return Score cache misses summed over all nodes
+     */
+    public long scoreCacheMisses() {
+        return sumOverNodes(plugin -> plugin.getScoreCache().stats().getMisses());
+    }
+
+    /**
+     * @return Cached segment top docs summed over all nodes
+     */
+    public long scoreCacheCount() {
+        return sumOverNodes(plugin -> plugin.getScoreCache().count());
+    }
+
+    /**
+     * @return Documents skipped because of invalid vectors, summed over all nodes
+     */
+    public long skippedDocs() {
+        return sumOverNodes(plugin -> plugin.getMetadataCache().skippedDocs());
+    }
+
+    /**
+     * @return Segments scored without per document checks, summed over all nodes
+     */
+    public long fixedDimensionSegments() {
+        return sumOverNodes(plugin -> plugin.getMetadataCache().fixedDimensionSegments());
+    }
+
+    /**
+     * @return Segments scored with per document checks, summed over all nodes
+     */
+    public long checkedSegments() {
+        return sumOverNodes(plugin -> plugin.getMetadataCache().checkedSegments());
+    }
+
     public void setupIndex(String index) throws IOException {
         createIndex(index);
         logger.info("[{}] created index", getLogPrefix());
+        putMapping(index);
+    }
+
+    public void setupIndex(String index, Settings settings) throws IOException {
+        assertAcked(prepareCreate(index).setSettings(settings));
+        logger.info("[{}] created index with settings {}", getLogPrefix(), settings);
+        putMapping(index);
+    }
+
+    private void putMapping(String index) throws IOException {
         ensureGreen(index);
         logger.info("[{}] ensured green", getLogPrefix());
 
@@ -129,6 +216,9 @@ public abstract class FastCosIntegTestCase extends ESIntegTestCase {
                         .startObject("name")
                             .field("type", "text")
                         .endObject()
+                        .startObject("region")
+                            .field("type", "keyword")
+                        .endObject()
                         .startObject("vec")
                             .field("type", "binary")
                             .field("doc_values", true)
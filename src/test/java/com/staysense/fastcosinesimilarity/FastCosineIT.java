@@ -1,20 +1,35 @@
 package com.staysense.fastcosinesimilarity;
 
 import org.apache.lucene.search.Explanation;
+import org.elasticsearch.action.search.SearchPhaseExecutionException;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.lucene.search.function.CombineFunction;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.MergePolicyConfig;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders;
 import org.elasticsearch.script.Script;
 import org.elasticsearch.script.ScriptType;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.profile.ProfileResult;
+import org.elasticsearch.search.profile.ProfileShardResult;
+import org.elasticsearch.search.profile.query.QueryProfileShardResult;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
+import static org.hamcrest.Matchers.containsString;
+
 public class FastCosineIT extends FastCosIntegTestCase {
     private static final String INDEX = "test";
 
@@ -109,4 +124,588 @@ public class FastCosineIT extends FastCosIntegTestCase {
         );
         assertEquals(expectedExplanation, searchHit.getExplanation());
     }
+
+    public void testQuerySparseVec() throws IOException {
+        setupIndex(INDEX);
+
+        // 0.1 at dimension 3, 0.2 at dimension 40000
+        byte[] docVectorBytes = new SparseVector(
+                new int[]{3, 40000},
+                new float[]{0.1f, 0.2f}
+        ).toBytes();
+        String id = "sparse";
+        client().prepareIndex(INDEX, "_doc", id)
+                .setSource(buildDoc(randomDocumentName(), docVectorBytes))
+                .execute().actionGet();
+
+        refresh(INDEX);
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("field", "vec");
+        params.put("encoding", "sparse");
+        params.put(
+                "encoded_vector",
+                Util.convertSparseToBase64(new int[]{3, 17, 40000}, new float[]{0.2f, 0.5f, 0.1f})
+        );
+
+        SearchResponse searchResponse = client().prepareSearch(INDEX)
+                .setQuery(
+                        QueryBuilders.functionScoreQuery(
+                                ScoreFunctionBuilders.scriptFunction(new Script(
+                                        ScriptType.INLINE,
+                                        "fast_cosine",
+                                        "staysense",
+                                        params
+                                ))
+                        )
+                )
+                .execute().actionGet();
+        assertEquals(1, searchResponse.getHits().totalHits);
+
+        SearchHit searchHit = searchResponse.getHits().getAt(0);
+        assertEquals(id, searchHit.getId());
+
+        // (0.1 * 0.2 + 0.2 * 0.1) / sqrt((0.01 + 0.04) * (0.04 + 0.25 + 0.01))
+        double expectedScore = 0.04d / Math.sqrt(0.05d * 0.3d);
+        assertEquals(expectedScore, searchHit.getScore(), 0.001d);
+    }
+
+    public void testQuerySparseVecAboveScatterLimit() throws IOException {
+        setupIndex(INDEX);
+
+        int farIndex = SparseVector.MAX_SCATTER_DIMENSION + 1;
+        String id = "sparse-far";
+        indexDoc(INDEX, id, randomDocumentName(), new SparseVector(
+                new int[]{3, farIndex},
+                new float[]{0.1f, 0.2f}
+        ).toBytes());
+        refresh(INDEX);
+
+        // Too large to scatter, scored by merge-join
+        Map<String, Object> params = new HashMap<>();
+        params.put("field", "vec");
+        params.put("encoding", "sparse");
+        params.put(
+                "encoded_vector",
+                Util.convertSparseToBase64(new int[]{3, 17, farIndex}, new float[]{0.2f, 0.5f, 0.1f})
+        );
+
+        SearchResponse searchResponse = client().prepareSearch(INDEX)
+                .setQuery(fastCosineQuery(params))
+                .execute().actionGet();
+        assertEquals(1, searchResponse.getHits().totalHits);
+        assertEquals(id, searchResponse.getHits().getAt(0).getId());
+        assertEquals(0.04d / Math.sqrt(0.05d * 0.3d), searchResponse.getHits().getAt(0).getScore(), 0.001d);
+    }
+
+    public void testUnorderedSparseIndicesAreInvalidForEveryQuery() throws IOException {
+        setupIndex(INDEX);
+
+        // Indices 17 then 3, which SparseVector refuses to encode
+        ByteBuffer unordered = ByteBuffer.allocate(SparseVector.HEADER_BYTES + 2 * SparseVector.ENTRY_BYTES);
+        unordered.putInt(2).putFloat(0.05f).putInt(17).putInt(3).putFloat(0.2f).putFloat(0.1f);
+        indexDoc(INDEX, "unordered", randomDocumentName(), unordered.array());
+        refresh(INDEX);
+
+        // Scattered, then merge-joined
+        for (int lastIndex : new int[]{40, SparseVector.MAX_SCATTER_DIMENSION + 1}) {
+            Map<String, Object> params = new HashMap<>();
+            params.put("field", "vec");
+            params.put("encoding", "sparse");
+            params.put("on_invalid", "skip");
+            params.put(
+                    "encoded_vector",
+                    Util.convertSparseToBase64(new int[]{3, 17, lastIndex}, new float[]{0.2f, 0.5f, 0.1f})
+            );
+
+            long skippedBefore = skippedDocs();
+            SearchResponse searchResponse = client().prepareSearch(INDEX)
+                    .setQuery(fastCosineQuery(params))
+                    .execute().actionGet();
+            assertEquals(1, searchResponse.getHits().totalHits);
+            assertEquals(0d, searchResponse.getHits().getAt(0).getScore(), 0d);
+            assertEquals(1, skippedDocs() - skippedBefore);
+        }
+    }
+
+    public void testCachedTopDocs() throws IOException {
+        // Keep each refresh's docs in their own segment
+        setupIndex(INDEX, Settings.builder()
+                .put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 1)
+                .put(IndexMetaData.SETTING_NUMBER_OF_REPLICAS, 0)
+                .put(MergePolicyConfig.INDEX_MERGE_ENABLED, false)
+                .put(IndexSettings.INDEX_REFRESH_INTERVAL_SETTING.getKey(), -1)
+                .build());
+
+        // More docs than [k], so that match_all is a broad filter
+        for (int i = 0; i < 12; i++) {
+            indexDoc(INDEX, Integer.toString(i), randomDocumentName(), randomVecBytes(2));
+        }
+        refresh(INDEX);
+
+        String queryVector = base64StringVector(randomVec(2));
+        FastCosineQueryBuilder query = new FastCosineQueryBuilder("vec", queryVector)
+                .k(3)
+                .cache(true);
+
+        long hitsBefore = scoreCacheHits();
+        long missesBefore = scoreCacheMisses();
+        SearchResponse first = client().prepareSearch(INDEX)
+                .setQuery(query)
+                .setProfile(true)
+                .execute().actionGet();
+        assertThat(fastCosineProfileDescription(first), containsString("strategies=[top_k]"));
+        assertEquals(hitsBefore, scoreCacheHits());
+        assertEquals(missesBefore + 1, scoreCacheMisses());
+
+        SearchResponse second = client().prepareSearch(INDEX)
+                .setQuery(query)
+                .execute().actionGet();
+        assertEquals(hitsBefore + 1, scoreCacheHits());
+        assertEquals(missesBefore + 1, scoreCacheMisses());
+        assertEquals(3, second.getHits().totalHits);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(first.getHits().getAt(i).getId(), second.getHits().getAt(i).getId());
+            assertEquals(first.getHits().getAt(i).getScore(), second.getHits().getAt(i).getScore(), 0f);
+        }
+
+        // After a refresh, only the new segment is scored
+        for (int i = 12; i < 24; i++) {
+            indexDoc(INDEX, Integer.toString(i), randomDocumentName(), randomVecBytes(2));
+        }
+        refresh(INDEX);
+
+        SearchResponse refreshed = client().prepareSearch(INDEX)
+                .setQuery(query)
+                .setProfile(true)
+                .execute().actionGet();
+        assertThat(fastCosineProfileDescription(refreshed), containsString("strategies=[top_k, top_k]"));
+        assertEquals(hitsBefore + 2, scoreCacheHits());
+        assertEquals(missesBefore + 2, scoreCacheMisses());
+
+        // Same top hits as scoring every doc with the script
+        Map<String, Object> params = new HashMap<>();
+        params.put("field", "vec");
+        params.put("encoded_vector", queryVector);
+        SearchResponse exact = client().prepareSearch(INDEX)
+                .setQuery(fastCosineQuery(params))
+                .setSize(3)
+                .execute().actionGet();
+        assertEquals(3, refreshed.getHits().totalHits);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(exact.getHits().getAt(i).getId(), refreshed.getHits().getAt(i).getId());
+            assertEquals(exact.getHits().getAt(i).getScore(), refreshed.getHits().getAt(i).getScore(), 0.00001f);
+        }
+    }
+
+    public void testSkipInvalidVectors() throws IOException {
+        setupIndex(INDEX);
+
+        indexDoc(INDEX, "valid", randomDocumentName(), getBinaryVec(Arrays.asList(0.1d, 0.2d)));
+        indexDoc(INDEX, "invalid", randomDocumentName(), getBinaryVec(Arrays.asList(0.1d, 0.2d, 0.3d)));
+        refresh(INDEX);
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("field", "vec");
+        params.put("on_invalid", "skip");
+        params.put("encoded_vector", base64StringVector(Arrays.asList(0.2d, 0.1d)));
+
+        long skippedBefore = skippedDocs();
+        SearchResponse searchResponse = client().prepareSearch(INDEX)
+                .setQuery(fastCosineQuery(params))
+                .execute().actionGet();
+
+        assertEquals(2, searchResponse.getHits().totalHits);
+        assertEquals("valid", searchResponse.getHits().getAt(0).getId());
+        assertEquals(0.8d, searchResponse.getHits().getAt(0).getScore(), 0.001d);
+        assertEquals("invalid", searchResponse.getHits().getAt(1).getId());
+        assertEquals(0d, searchResponse.getHits().getAt(1).getScore(), 0d);
+        assertEquals(1, skippedDocs() - skippedBefore);
+    }
+
+    public void testFailOnInvalidVectors() throws IOException {
+        // A single shard, so that its failure fails the whole search
+        setupIndex(INDEX, Settings.builder()
+                .put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 1)
+                .put(IndexMetaData.SETTING_NUMBER_OF_REPLICAS, 0)
+                .build());
+
+        indexDoc(INDEX, "valid", randomDocumentName(), getBinaryVec(Arrays.asList(0.1d, 0.2d)));
+        indexDoc(INDEX, "invalid", randomDocumentName(), getBinaryVec(Arrays.asList(0.1d, 0.2d, 0.3d)));
+        refresh(INDEX);
+
+        // [on_invalid] defaults to fail
+        Map<String, Object> params = new HashMap<>();
+        params.put("field", "vec");
+        params.put("encoded_vector", base64StringVector(Arrays.asList(0.2d, 0.1d)));
+
+        long skippedBefore = skippedDocs();
+        expectThrows(SearchPhaseExecutionException.class, () -> client().prepareSearch(INDEX)
+                .setQuery(fastCosineQuery(params))
+                .execute().actionGet());
+        assertEquals(skippedBefore, skippedDocs());
+    }
+
+    public void testFixedDimensionSegments() throws IOException {
+        // Keep each refresh's docs in their own segment
+        setupIndex(INDEX, Settings.builder()
+                .put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 1)
+                .put(IndexMetaData.SETTING_NUMBER_OF_REPLICAS, 0)
+                .put(MergePolicyConfig.INDEX_MERGE_ENABLED, false)
+                .build());
+
+        indexDoc(INDEX, "a", randomDocumentName(), getBinaryVec(Arrays.asList(0.1d, 0.2d)));
+        indexDoc(INDEX, "b", randomDocumentName(), getBinaryVec(Arrays.asList(0.2d, 0.1d)));
+        refresh(INDEX);
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("field", "vec");
+        params.put("on_invalid", "skip");
+        params.put("encoded_vector", base64StringVector(Arrays.asList(0.2d, 0.1d)));
+
+        // Every vector matches the query's dimension
+        long fixedBefore = fixedDimensionSegments();
+        long checkedBefore = checkedSegments();
+        SearchResponse fixed = client().prepareSearch(INDEX)
+                .setQuery(fastCosineQuery(params))
+                .execute().actionGet();
+        assertEquals(2, fixed.getHits().totalHits);
+        assertEquals("b", fixed.getHits().getAt(0).getId());
+        assertEquals(1d, fixed.getHits().getAt(0).getScore(), 0.001d);
+        assertEquals("a", fixed.getHits().getAt(1).getId());
+        assertEquals(0.8d, fixed.getHits().getAt(1).getScore(), 0.001d);
+        assertTrue(fixedDimensionSegments() > fixedBefore);
+        assertEquals(checkedBefore, checkedSegments());
+
+        // A new segment with a vector of another dimension is checked, the first one is not
+        indexDoc(INDEX, "c", randomDocumentName(), getBinaryVec(Arrays.asList(0.1d, 0.2d, 0.3d)));
+        refresh(INDEX);
+
+        fixedBefore = fixedDimensionSegments();
+        checkedBefore = checkedSegments();
+        SearchResponse mixed = client().prepareSearch(INDEX)
+                .setQuery(fastCosineQuery(params))
+                .execute().actionGet();
+        assertEquals(3, mixed.getHits().totalHits);
+        assertEquals(fixed.getHits().getAt(0).getScore(), mixed.getHits().getAt(0).getScore(), 0f);
+        assertEquals(fixed.getHits().getAt(1).getScore(), mixed.getHits().getAt(1).getScore(), 0f);
+        assertTrue(fixedDimensionSegments() > fixedBefore);
+        assertEquals(checkedBefore + 1, checkedSegments());
+    }
+
+    public void testFixedDimensionSparseSegments() throws IOException {
+        setupIndex(INDEX, Settings.builder()
+                .put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 1)
+                .put(IndexMetaData.SETTING_NUMBER_OF_REPLICAS, 0)
+                .build());
+
+        // Every index is within the scattered query vector
+        String id = "sparse-fixed";
+        indexDoc(INDEX, id, randomDocumentName(), new SparseVector(
+                new int[]{3, 17},
+                new float[]{0.1f, 0.2f}
+        ).toBytes());
+        refresh(INDEX);
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("field", "vec");
+        params.put("encoding", "sparse");
+        params.put(
+                "encoded_vector",
+                Util.convertSparseToBase64(new int[]{3, 17, 40}, new float[]{0.2f, 0.5f, 0.1f})
+        );
+
+        long fixedBefore = fixedDimensionSegments();
+        long checkedBefore = checkedSegments();
+        SearchResponse searchResponse = client().prepareSearch(INDEX)
+                .setQuery(fastCosineQuery(params))
+                .execute().actionGet();
+        assertEquals(1, searchResponse.getHits().totalHits);
+        assertEquals(id, searchResponse.getHits().getAt(0).getId());
+        // (0.1 * 0.2 + 0.2 * 0.5) / sqrt((0.01 + 0.04) * (0.04 + 0.25 + 0.01))
+        assertEquals(0.12d / Math.sqrt(0.05d * 0.3d), searchResponse.getHits().getAt(0).getScore(), 0.001d);
+        assertTrue(fixedDimensionSegments() > fixedBefore);
+        assertEquals(checkedBefore, checkedSegments());
+    }
+
+    public void testInvalidSegmentsAreNotCached() throws IOException {
+        setupIndex(INDEX, Settings.builder()
+                .put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 1)
+                .put(IndexMetaData.SETTING_NUMBER_OF_REPLICAS, 0)
+                .build());
+
+        for (int i = 0; i < 12; i++) {
+            indexDoc(INDEX, Integer.toString(i), randomDocumentName(), randomVecBytes(2));
+        }
+        indexDoc(INDEX, "invalid", randomDocumentName(), getBinaryVec(Arrays.asList(0.1d, 0.2d, 0.3d)));
+        client().admin().indices().prepareForceMerge(INDEX).setMaxNumSegments(1).get();
+        refresh(INDEX);
+
+        // The segment's top docs would hold the invalid doc, so it is scanned, and the invalid doc fails the query
+        FastCosineQueryBuilder query = new FastCosineQueryBuilder("vec", base64StringVector(Arrays.asList(0.2d, 0.1d)))
+                .k(3)
+                .cache(true);
+        long countBefore = scoreCacheCount();
+        expectThrows(SearchPhaseExecutionException.class, () -> client().prepareSearch(INDEX)
+                .setQuery(query)
+                .execute().actionGet());
+        assertEquals(countBefore, scoreCacheCount());
+
+        // Or is skipped
+        long skippedBefore = skippedDocs();
+        SearchResponse skipped = client().prepareSearch(INDEX)
+                .setQuery(query.onInvalid("skip"))
+                .setProfile(true)
+                .execute().actionGet();
+        assertEquals(3, skipped.getHits().totalHits);
+        assertThat(fastCosineProfileDescription(skipped), containsString("strategies=[exact_scan]"));
+        assertEquals(1, skippedDocs() - skippedBefore);
+        assertEquals(countBefore, scoreCacheCount());
+    }
+
+    public void testQueryOnInvalid() throws IOException {
+        // Keep each refresh's docs in their own segment
+        setupIndex(INDEX, Settings.builder()
+                .put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 1)
+                .put(IndexMetaData.SETTING_NUMBER_OF_REPLICAS, 0)
+                .put(MergePolicyConfig.INDEX_MERGE_ENABLED, false)
+                .build());
+
+        indexDoc(INDEX, "a", randomDocumentName(), getBinaryVec(Arrays.asList(0.1d, 0.2d)));
+        indexDoc(INDEX, "b", randomDocumentName(), getBinaryVec(Arrays.asList(0.2d, 0.1d)));
+        refresh(INDEX);
+
+        FastCosineQueryBuilder query = new FastCosineQueryBuilder("vec", base64StringVector(Arrays.asList(0.2d, 0.1d)));
+
+        // Every vector matches the query's dimension, as for the script
+        long fixedBefore = fixedDimensionSegments();
+        long checkedBefore = checkedSegments();
+        SearchResponse fixed = client().prepareSearch(INDEX)
+                .setQuery(query)
+                .execute().actionGet();
+        assertEquals(2, fixed.getHits().totalHits);
+        assertEquals("b", fixed.getHits().getAt(0).getId());
+        assertEquals(1d, fixed.getHits().getAt(0).getScore(), 0.001d);
+        assertEquals("a", fixed.getHits().getAt(1).getId());
+        assertEquals(0.8d, fixed.getHits().getAt(1).getScore(), 0.001d);
+        assertEquals(fixedBefore + 1, fixedDimensionSegments());
+        assertEquals(checkedBefore, checkedSegments());
+
+        // A new segment with a vector of another dimension is checked, and fails the query by default
+        indexDoc(INDEX, "invalid", randomDocumentName(), getBinaryVec(Arrays.asList(0.1d, 0.2d, 0.3d)));
+        refresh(INDEX);
+
+        long skippedBefore = skippedDocs();
+        expectThrows(SearchPhaseExecutionException.class, () -> client().prepareSearch(INDEX)
+                .setQuery(query)
+                .execute().actionGet());
+        assertEquals(skippedBefore, skippedDocs());
+
+        // Skipped docs do not match
+        fixedBefore = fixedDimensionSegments();
+        checkedBefore = checkedSegments();
+        SearchResponse skipped = client().prepareSearch(INDEX)
+                .setQuery(query.onInvalid("skip"))
+                .execute().actionGet();
+        assertEquals(2, skipped.getHits().totalHits);
+        assertEquals("b", skipped.getHits().getAt(0).getId());
+        assertEquals("a", skipped.getHits().getAt(1).getId());
+        assertEquals(1, skippedDocs() - skippedBefore);
+        assertEquals(fixedBefore + 1, fixedDimensionSegments());
+        assertEquals(checkedBefore + 1, checkedSegments());
+    }
+
+    public void testScriptRejectsCache() throws IOException {
+        setupIndex(INDEX);
+
+        indexDoc(INDEX, "doc", randomDocumentName(), getBinaryVec(Arrays.asList(0.1d, 0.2d)));
+        refresh(INDEX);
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("field", "vec");
+        params.put("cache", true);
+        params.put("encoded_vector", base64StringVector(Arrays.asList(0.2d, 0.1d)));
+        SearchPhaseExecutionException e = expectThrows(SearchPhaseExecutionException.class, () -> client()
+                .prepareSearch(INDEX)
+                .setQuery(fastCosineQuery(params))
+                .execute().actionGet());
+        assertThat(
+                e.shardFailures()[0].reason(),
+                containsString("[cache] is only supported by the [fast_cosine] query")
+        );
+    }
+
+    public void testQueryStrategyFollowsFilterSelectivity() throws IOException {
+        setupIndex(INDEX, Settings.builder()
+                .put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 1)
+                .put(IndexMetaData.SETTING_NUMBER_OF_REPLICAS, 0)
+                .build());
+
+        int numDocs = 20;
+        for (int i = 0; i < numDocs; i++) {
+            indexDoc(INDEX, Integer.toString(i), XContentFactory.jsonBuilder().startObject()
+                    .field("name", randomDocumentName())
+                    .field("region", i == 0 ? "se" : "no")
+                    .field("vec", randomVecBytes(2))
+                    .endObject());
+        }
+        // A single segment, so that there is a single strategy to check
+        client().admin().indices().prepareForceMerge(INDEX).setMaxNumSegments(1).get();
+        refresh(INDEX);
+
+        String queryVector = base64StringVector(randomVec(2));
+
+        // 1 of 20 docs: narrow, every matching doc is scored
+        SearchResponse narrow = client().prepareSearch(INDEX)
+                .setQuery(new FastCosineQueryBuilder("vec", queryVector)
+                        .filter(QueryBuilders.termQuery("region", "se"))
+                        .k(3))
+                .setProfile(true)
+                .execute().actionGet();
+        assertEquals(1, narrow.getHits().totalHits);
+        assertEquals("0", narrow.getHits().getAt(0).getId());
+        assertThat(fastCosineProfileDescription(narrow), containsString("strategies=[exact_scan]"));
+
+        // 19 of 20 docs: broad, the shard's top k are returned
+        SearchResponse broad = client().prepareSearch(INDEX)
+                .setQuery(new FastCosineQueryBuilder("vec", queryVector)
+                        .filter(QueryBuilders.termQuery("region", "no"))
+                        .k(3)
+                        .cache(true))
+                .setProfile(true)
+                .execute().actionGet();
+        assertEquals(3, broad.getHits().totalHits);
+        assertThat(fastCosineProfileDescription(broad), containsString("strategies=[top_k]"));
+
+        // Same top hits as scoring every filtered doc with the script
+        Map<String, Object> params = new HashMap<>();
+        params.put("field", "vec");
+        params.put("encoded_vector", queryVector);
+        SearchResponse exact = client().prepareSearch(INDEX)
+                .setQuery(QueryBuilders.functionScoreQuery(
+                        QueryBuilders.boolQuery().filter(QueryBuilders.termQuery("region", "no")),
+                        ScoreFunctionBuilders.scriptFunction(new Script(
+                                ScriptType.INLINE,
+                                "fast_cosine",
+                                "staysense",
+                                params
+                        ))
+                ).boostMode(CombineFunction.REPLACE))
+                .setSize(3)
+                .execute().actionGet();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(exact.getHits().getAt(i).getId(), broad.getHits().getAt(i).getId());
+            assertEquals(exact.getHits().getAt(i).getScore(), broad.getHits().getAt(i).getScore(), 0.00001f);
+        }
+    }
+
+    public void testQueryResultsDoNotDependOnSegments() throws IOException {
+        // Keep each refresh's docs in their own segment
+        setupIndex(INDEX, Settings.builder()
+                .put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 1)
+                .put(IndexMetaData.SETTING_NUMBER_OF_REPLICAS, 0)
+                .put(MergePolicyConfig.INDEX_MERGE_ENABLED, false)
+                .put(IndexSettings.INDEX_REFRESH_INTERVAL_SETTING.getKey(), -1)
+                .build());
+
+        List<Double> queryVector = randomVec(4);
+        // Cosine similarity of every doc that passes the filter and has a vector
+        Map<String, Float> expected = new HashMap<>();
+        // Share of "no" docs per segment: broad filters in the first two, narrow ones after
+        double[] broadShares = new double[]{1d, 0.9d, 0.1d, 0d};
+        int id = 0;
+        for (double broadShare : broadShares) {
+            for (int i = 0; i < 10; i++, id++) {
+                String region = i < broadShare * 10 ? "no" : "se";
+                XContentBuilder doc = XContentFactory.jsonBuilder().startObject()
+                        .field("name", randomDocumentName())
+                        .field("region", region);
+                // Some filtered docs have no vector, and never match
+                if (i % 7 != 3) {
+                    List<Double> docVector = randomVec(4);
+                    doc.field("vec", getBinaryVec(docVector));
+                    if ("no".equals(region)) {
+                        expected.put(Integer.toString(id), cosine(queryVector, docVector));
+                    }
+                }
+                indexDoc(INDEX, Integer.toString(id), doc.endObject());
+            }
+            refresh(INDEX);
+        }
+
+        List<Map.Entry<String, Float>> ranked = new ArrayList<>(expected.entrySet());
+        ranked.sort((a, b) -> Float.compare(b.getValue(), a.getValue()));
+
+        for (int k : new int[]{5, 100}) {
+            SearchResponse searchResponse = client().prepareSearch(INDEX)
+                    .setQuery(new FastCosineQueryBuilder("vec", base64StringVector(queryVector))
+                            .filter(QueryBuilders.termQuery("region", "no"))
+                            .k(k)
+                            .cache(true))
+                    .setSize(100)
+                    .setExplain(true)
+                    .setProfile(true)
+                    .execute().actionGet();
+
+            if (k < 10) {
+                // Broad in the first two segments, narrow or absent in the others
+                assertThat(
+                        fastCosineProfileDescription(searchResponse),
+                        containsString("strategies=[top_k, top_k, exact_scan, exact_scan]")
+                );
+            }
+
+            // The shard's top k, whatever strategy each segment used
+            int numHits = Math.min(k, ranked.size());
+            assertEquals(numHits, searchResponse.getHits().totalHits);
+            for (int i = 0; i < numHits; i++) {
+                SearchHit hit = searchResponse.getHits().getAt(i);
+                assertEquals(ranked.get(i).getKey(), hit.getId());
+                assertEquals(ranked.get(i).getValue(), hit.getScore(), 0.00001f);
+                assertThat(hit.getExplanation().getDescription(), containsString("among the top [" + k + "]"));
+            }
+        }
+    }
+
+    private static float cosine(List<Double> a, List<Double> b) {
+        double dot = 0d;
+        double normA = 0d;
+        double normB = 0d;
+        for (int i = 0; i < a.size(); i++) {
+            dot += a.get(i) * b.get(i);
+            normA += a.get(i) * a.get(i);
+            normB += b.get(i) * b.get(i);
+        }
+        return (float) (dot / Math.sqrt(normA * normB));
+    }
+
+    /**
+     * @return Lucene description of the first profiled FastCosineQuery
+     */
+    private static String fastCosineProfileDescription(SearchResponse searchResponse) {
+        for (ProfileShardResult shardResult : searchResponse.getProfileResults().values()) {
+            for (QueryProfileShardResult queryProfileResult : shardResult.getQueryProfileResults()) {
+                for (ProfileResult profileResult : queryProfileResult.getQueryResults()) {
+                    String description = fastCosineProfileDescription(profileResult);
+                    if (description != null) {
+                        return description;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String fastCosineProfileDescription(ProfileResult profileResult) {
+        if (FastCosineQuery.class.getSimpleName().equals(profileResult.getQueryName())) {
+            return profileResult.getLuceneDescription();
+        }
+        for (ProfileResult child : profileResult.getProfiledChildren()) {
+            String description = fastCosineProfileDescription(child);
+            if (description != null) {
+                return description;
+            }
+        }
+        return null;
+    }
 }
@@ -0,0 +1,329 @@
+package com.staysense.fastcosinesimilarity;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.Booleans;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.PathUtils;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.test.ESIntegTestCase.ClusterScope;
+import org.elasticsearch.test.ESIntegTestCase.Scope;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
+
+/**
+ * Load test: indexes a synthetic corpus and drives concurrent fast_cosine queries against it,
+ * then reports QPS, latency percentiles and GC activity as JSON.
+ *
+ * Skipped unless run with {@code -Dtests.fastcosine.load=true}. The other knobs are system
+ * properties prefixed with {@code tests.fastcosine.load.}, see {@link #setUpConfig()}. The corpus
+ * and query vectors derive from the test seed, so {@code -Dtests.seed} makes a run reproducible.
+ *
+ * The cluster is pinned rather than randomized: [nodes] master and data nodes, no client nodes,
+ * no random index template, and every request sent through one node's unwrapped client.
+ */
+@ClusterScope(
+        scope = Scope.TEST,
+        numDataNodes = 0,
+        numClientNodes = 0,
+        transportClientRatio = 0,
+        supportsDedicatedMasters = false
+)
+public class FastCosineLoadIT extends FastCosIntegTestCase {
+    private static final String INDEX = "load";
+    private static final String PROPERTY_PREFIX = "tests.fastcosine.load.";
+
+    private int nodes;
+    private int numDocs;
+    private int dims;
+    private int shards;
+    private double missingRatio;
+    private int clientThreads;
+    private int queriesPerThread;
+    private int warmupQueriesPerThread;
+    private int queryVectors;
+    // "script" for the function_score script, or "fast_cosine" for the query
+    private String query;
+    private int k;
+    private boolean cache;
+    private String reportPath;
+
+    private void setUpConfig() {
+        nodes = intProperty("nodes", 1);
+        numDocs = intProperty("docs", 100000);
+        dims = intProperty("dims", 128);
+        shards = intProperty("shards", 1);
+        missingRatio = Double.parseDouble(System.getProperty(PROPERTY_PREFIX + "missing_ratio", "0.0"));
+        clientThreads = intProperty("threads", 8);
+        queriesPerThread = intProperty("queries", 500);
+        warmupQueriesPerThread = intProperty("warmup_queries", 50);
+        queryVectors = intProperty("query_vectors", 100);
+        query = System.getProperty(PROPERTY_PREFIX + "query", "script");
+        k = intProperty("k", FastCosineQueryBuilder.DEFAULT_K);
+        cache = Booleans.parseBoolean(System.getProperty(PROPERTY_PREFIX + "cache", "false"));
+        if (!"script".equals(query) && !FastCosineQueryBuilder.NAME.equals(query)) {
+            throw new IllegalArgumentException("Unknown [query] [" + query + "], expected [script] or [fast_cosine]");
+        }
+        if (cache && "script".equals(query)) {
+            throw new IllegalArgumentException("[cache] requires [query] [fast_cosine]");
+        }
+        reportPath = System.getProperty(PROPERTY_PREFIX + "report");
+    }
+
+    private static int intProperty(String name, int defaultValue) {
+        return Integer.parseInt(System.getProperty(PROPERTY_PREFIX + name, Integer.toString(defaultValue)));
+    }
+
+    public void testLoad() throws Exception {
+        assumeTrue(
+                "load test disabled, run with -Dtests.fastcosine.load=true",
+                Booleans.parseBoolean(System.getProperty("tests.fastcosine.load", "false"))
+        );
+        setUpConfig();
+
+        List<String> nodeNames = internalCluster().startNodes(nodes);
+        // Coordinate every request on the same node, without RandomizingClient's random request options
+        Client client = internalCluster().client(nodeNames.get(0));
+        assertAcked(client.admin().indices().prepareDeleteTemplate("*").get());
+
+        setupIndex(INDEX, Settings.builder()
+                .put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, shards)
+                .put(IndexMetaData.SETTING_NUMBER_OF_REPLICAS, 0)
+                .build());
+        indexCorpus(client);
+
+        // random() may only be used from the test thread, so build every query up front
+        List<QueryBuilder> queries = new ArrayList<>(queryVectors);
+        for (int i = 0; i < queryVectors; i++) {
+            String encodedVector = base64StringVector(randomVec(dims));
+            if ("script".equals(query)) {
+                Map<String, Object> params = new HashMap<>();
+                params.put("field", "vec");
+                params.put("encoded_vector", encodedVector);
+                queries.add(fastCosineQuery(params));
+            } else {
+                queries.add(new FastCosineQueryBuilder("vec", encodedVector).k(k).cache(cache));
+            }
+        }
+
+        runQueries(
+                client,
+                queries,
+                warmupQueriesPerThread,
+                new long[clientThreads][warmupQueriesPerThread],
+                new boolean[clientThreads][warmupQueriesPerThread]
+        );
+
+        long[][] latencies = new long[clientThreads][queriesPerThread];
+        boolean[][] failed = new boolean[clientThreads][queriesPerThread];
+        Map<String, long[]> gcBefore = gcStats();
+        long startNanos = System.nanoTime();
+        runQueries(client, queries, queriesPerThread, latencies, failed);
+        long elapsedNanos = System.nanoTime() - startNanos;
+        Map<String, long[]> gcAfter = gcStats();
+
+        long[] succeededLatencies = sortedLatencies(latencies, failed, false);
+        long[] failedLatencies = sortedLatencies(latencies, failed, true);
+        String report = Strings.toString(
+                buildReport(succeededLatencies, failedLatencies, elapsedNanos, gcBefore, gcAfter)
+        );
+        logger.info("[{}] report: {}", getLogPrefix(), report);
+        if (reportPath != null) {
+            Files.write(PathUtils.get(reportPath), report.getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(0, failedLatencies.length);
+    }
+
+    private void indexCorpus(Client client) {
+        final int batchSize = 1000;
+        for (int from = 0; from < numDocs; from += batchSize) {
+            BulkRequestBuilder bulk = client.prepareBulk();
+            for (int id = from; id < Math.min(from + batchSize, numDocs); id++) {
+                Map<String, Object> source = new HashMap<>();
+                source.put("name", "doc-" + id);
+                if (randomDouble() >= missingRatio) {
+                    source.put("vec", randomVecBytes(dims));
+                }
+                bulk.add(client.prepareIndex(INDEX, "_doc", Integer.toString(id)).setSource(source));
+            }
+            BulkResponse bulkResponse = bulk.execute().actionGet();
+            assertFalse(bulkResponse.buildFailureMessage(), bulkResponse.hasFailures());
+        }
+        refresh(INDEX);
+        logger.info(
+                "[{}] indexed [{}] docs of [{}] dims into [{}] shards on [{}] nodes",
+                getLogPrefix(),
+                numDocs,
+                dims,
+                shards,
+                nodes
+        );
+    }
+
+    /**
+     * Run {@code queries} queries on each of the client threads, recording each latency in
+     * nanoseconds and whether the query failed.
+     */
+    private void runQueries(
+            Client client,
+            List<QueryBuilder> queryBuilders,
+            int queries,
+            long[][] latencies,
+            boolean[][] failed
+    ) throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(clientThreads);
+        Thread[] threads = new Thread[clientThreads];
+        for (int t = 0; t < clientThreads; t++) {
+            final int thread = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    barrier.await();
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+                for (int i = 0; i < queries; i++) {
+                    QueryBuilder queryBuilder = queryBuilders.get((thread * queries + i) % queryBuilders.size());
+                    long start = System.nanoTime();
+                    try {
+                        SearchResponse searchResponse = client.prepareSearch(INDEX)
+                                .setSearchType(SearchType.QUERY_THEN_FETCH)
+                                .setQuery(queryBuilder)
+                                .execute().actionGet();
+                        failed[thread][i] = searchResponse.status() != RestStatus.OK
+                                || searchResponse.getFailedShards() > 0;
+                    } catch (Exception e) {
+                        logger.warn("query failed", e);
+                        failed[thread][i] = true;
+                    }
+                    latencies[thread][i] = System.nanoTime() - start;
+                }
+            }, "fast-cosine-load-client-" + t);
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * @return Sorted latencies of the queries that failed, or of those that succeeded
+     */
+    private static long[] sortedLatencies(long[][] latencies, boolean[][] failed, boolean ofFailed) {
+        List<Long> selected = new ArrayList<>();
+        for (int thread = 0; thread < latencies.length; thread++) {
+            for (int i = 0; i < latencies[thread].length; i++) {
+                if (failed[thread][i] == ofFailed) {
+                    selected.add(latencies[thread][i]);
+                }
+            }
+        }
+        return selected.stream().mapToLong(Long::longValue).sorted().toArray();
+    }
+
+    /**
+     * @return Collection count and time in milliseconds per garbage collector
+     */
+    private static Map<String, long[]> gcStats() {
+        Map<String, long[]> stats = new HashMap<>();
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            stats.put(gc.getName(), new long[]{gc.getCollectionCount(), gc.getCollectionTime()});
+        }
+        return stats;
+    }
+
+    /**
+     * Throughput and latency percentiles cover successful queries only, failed queries are
+     * reported separately: they often fail fast and would otherwise flatter the percentiles.
+     */
+    private XContentBuilder buildReport(
+            long[] succeeded,
+            long[] failed,
+            long elapsedNanos,
+            Map<String, long[]> gcBefore,
+            Map<String, long[]> gcAfter
+    ) throws IOException {
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        builder.field("version", Version.CURRENT.toString());
+        builder.field("seed", System.getProperty("tests.seed"));
+
+        builder.startObject("config")
+                .field("docs", numDocs)
+                .field("dims", dims)
+                .field("shards", shards)
+                .field("nodes", internalCluster().size())
+                .field("search_type", SearchType.QUERY_THEN_FETCH.name().toLowerCase(Locale.ROOT))
+                .field("missing_ratio", missingRatio)
+                .field("threads", clientThreads)
+                .field("queries_per_thread", queriesPerThread)
+                .field("warmup_queries_per_thread", warmupQueriesPerThread)
+                .field("query_vectors", queryVectors)
+                .field("query", query)
+                .field("k", k)
+                .field("cache", cache)
+                .endObject();
+
+        builder.field("queries", succeeded.length + failed.length);
+        builder.field("errors", failed.length);
+        builder.field("elapsed_ms", TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+        builder.field("qps", succeeded.length / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1)));
+
+        latencyStats(builder, "latency_ms", succeeded);
+        latencyStats(builder, "failed_latency_ms", failed);
+
+        builder.startObject("gc");
+        for (Map.Entry<String, long[]> entry : gcAfter.entrySet()) {
+            long[] before = gcBefore.getOrDefault(entry.getKey(), new long[]{0, 0});
+            builder.startObject(entry.getKey())
+                    .field("collections", entry.getValue()[0] - before[0])
+                    .field("time_ms", entry.getValue()[1] - before[1])
+                    .endObject();
+        }
+        builder.endObject();
+
+        return builder.endObject();
+    }
+
+    private static void latencyStats(XContentBuilder builder, String name, long[] sorted) throws IOException {
+        builder.startObject(name)
+                .field("mean", Arrays.stream(sorted).average().orElse(0d) / TimeUnit.MILLISECONDS.toNanos(1))
+                .field("p50", percentileMillis(sorted, 0.5d))
+                .field("p99", percentileMillis(sorted, 0.99d))
+                .field("p999", percentileMillis(sorted, 0.999d))
+                .field("max", percentileMillis(sorted, 1d))
+                .endObject();
+    }
+
+    /**
+     * Nearest-rank percentile of sorted nanosecond latencies, in milliseconds.
+     */
+    private static double percentileMillis(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0d;
+        }
+        int rank = (int) Math.ceil(quantile * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,96 @@
+package com.staysense.fastcosinesimilarity;
+
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.test.rest.ESRestTestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.Map;
+
+/**
+ * Runs against the integration test cluster, which has the plugin installed.
+ */
+public class FastCosineRestIT extends ESRestTestCase {
+    private static final String INDEX = "rest-test";
+
+    public void testStats() throws IOException {
+        Request createIndex = new Request("PUT", "/" + INDEX);
+        createIndex.setJsonEntity(Strings.toString(XContentFactory.jsonBuilder().startObject()
+                .startObject("settings")
+                    .field("number_of_shards", 1)
+                    .field("number_of_replicas", 0)
+                    // A single segment, refreshed below
+                    .field("refresh_interval", -1)
+                .endObject()
+                .startObject("mappings")
+                    .startObject("_doc")
+                        .startObject("properties")
+                            .startObject("vec")
+                                .field("type", "binary")
+                                .field("doc_values", true)
+                            .endObject()
+                        .endObject()
+                    .endObject()
+                .endObject()
+                .endObject()));
+        assertOK(client().performRequest(createIndex));
+
+        // More docs than [k], so that the match_all filter is broad and the top docs are cached
+        for (int i = 0; i < 12; i++) {
+            Request indexDoc = new Request("PUT", "/" + INDEX + "/_doc/" + i);
+            indexDoc.setJsonEntity(Strings.toString(XContentFactory.jsonBuilder().startObject()
+                    .field("vec", encode(randomDouble(), randomDouble()))
+                    .endObject()));
+            assertOK(client().performRequest(indexDoc));
+        }
+        assertOK(client().performRequest(new Request("POST", "/" + INDEX + "/_refresh")));
+
+        XContentBuilder query = XContentFactory.jsonBuilder().startObject()
+                .startObject("query")
+                    .startObject(FastCosineQueryBuilder.NAME)
+                        .field("field", "vec")
+                        .field("encoded_vector", encode(0.2d, 0.1d))
+                        .field("k", 3)
+                        .field("cache", true)
+                    .endObject()
+                .endObject()
+                .endObject();
+        for (int i = 0; i < 2; i++) {
+            Request search = new Request("POST", "/" + INDEX + "/_search");
+            search.setJsonEntity(Strings.toString(query));
+            Map<String, Object> searchResponse = entityAsMap(client().performRequest(search));
+            assertEquals(3, ((Map<?, ?>) searchResponse.get("hits")).get("total"));
+        }
+
+        Response response = client().performRequest(new Request("GET", "/_fast_cosine/stats"));
+        assertOK(response);
+        Map<String, Object> stats = entityAsMap(response);
+        assertNotNull(stats.get("node"));
+
+        // The first search scored the segment, the second one read it from the cache
+        Map<?, ?> scoreCache = (Map<?, ?>) stats.get("score_cache");
+        assertTrue(((Number) scoreCache.get("misses")).longValue() >= 1);
+        assertTrue(((Number) scoreCache.get("hits")).longValue() >= 1);
+        assertTrue(((Number) scoreCache.get("count")).intValue() >= 1);
+        assertTrue(((Number) scoreCache.get("size_in_bytes")).longValue() > 0);
+        assertNotNull(scoreCache.get("evictions"));
+
+        Map<?, ?> segmentMetadata = (Map<?, ?>) stats.get("segment_metadata");
+        assertNotNull(segmentMetadata.get("count"));
+        assertNotNull(segmentMetadata.get("invalid_vectors"));
+        assertNotNull(segmentMetadata.get("skipped_docs"));
+    }
+
+    private static String encode(double... vector) {
+        ByteBuffer buf = ByteBuffer.allocate(vector.length * Double.BYTES);
+        for (double v : vector) {
+            buf.putDouble(v);
+        }
+        return Base64.getEncoder().encodeToString(buf.array());
+    }
+}